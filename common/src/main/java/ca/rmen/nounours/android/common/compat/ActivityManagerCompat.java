@@ -0,0 +1,40 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.compat;
+
+import android.content.Context;
+
+public class ActivityManagerCompat {
+    private ActivityManagerCompat() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return the number of bytes our process may use on the heap before it runs out of memory.
+     */
+    public static long getHeapLimitBytes(Context context) {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (ApiHelper.getAPILevel() >= 5) {
+            // The memory class doesn't include the large heap some devices give us: stay on the safe side.
+            return Math.min(maxMemory, Api5Helper.getMemoryClass(context) * 1024L * 1024L);
+        }
+        return maxMemory;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.compat;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+@TargetApi(14)
+class Api14Helper {
+    private Api14Helper() {
+        // prevent instantiation
+    }
+
+    static Object registerMemoryPressureListener(Context context, final ContextCompat.MemoryPressureListener listener) {
+        ComponentCallbacks2 callbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                int memoryPressure = getMemoryPressure(level);
+                if (memoryPressure != ContextCompat.MEMORY_PRESSURE_NONE) listener.onMemoryPressure(memoryPressure);
+            }
+
+            @Override
+            public void onLowMemory() {
+                listener.onMemoryPressure(ContextCompat.MEMORY_PRESSURE_CRITICAL);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration configuration) {
+            }
+        };
+        context.getApplicationContext().registerComponentCallbacks(callbacks);
+        return callbacks;
+    }
+
+    static void unregisterMemoryPressureListener(Context context, Object callbacks) {
+        context.getApplicationContext().unregisterComponentCallbacks((ComponentCallbacks2) callbacks);
+    }
+
+    private static int getMemoryPressure(int level) {
+        switch (level) {
+            // We're only told that our ui is hidden, or that our process is in the background:
+            // the system isn't short of memory.
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return ContextCompat.MEMORY_PRESSURE_NONE;
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+                return ContextCompat.MEMORY_PRESSURE_CRITICAL;
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+                return ContextCompat.MEMORY_PRESSURE_MODERATE;
+            default:
+                return ContextCompat.MEMORY_PRESSURE_LIGHT;
+        }
+    }
+}
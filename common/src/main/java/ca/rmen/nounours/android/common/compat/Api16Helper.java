@@ -0,0 +1,47 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.compat;
+
+import android.annotation.TargetApi;
+import android.view.Choreographer;
+
+@TargetApi(16)
+class Api16Helper {
+    private Api16Helper() {
+        // prevent instantiation
+    }
+
+    static Object createFrameCallback(final ChoreographerCompat.FrameCallback frameCallback) {
+        return new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                frameCallback.doFrame(frameTimeNanos);
+            }
+        };
+    }
+
+    static void postFrameCallback(Object frameCallback) {
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+
+    static void removeFrameCallback(Object frameCallback) {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+}
@@ -31,6 +31,100 @@ public class BitmapCompat {
         if (ApiHelper.getAPILevel() >= 4) {
             Api4Helper.setBitmapFactoryOptions(options);
         }
+        if (ApiHelper.getAPILevel() >= 11) {
+            Api11Helper.setBitmapFactoryOptions(options);
+        }
         return options;
     }
+
+    /**
+     * @return true if we can decode an image into the memory of an existing bitmap on this device.
+     * inBitmap exists since Honeycomb, but we also need {@link #getGenerationId(Bitmap)} to tell
+     * when the pixels of a bitmap we've seen before have been replaced.
+     */
+    public static boolean isBitmapReuseSupported() {
+        return ApiHelper.getAPILevel() >= 12;
+    }
+
+    /**
+     * Before KitKat, a bitmap can only be reused to decode an image of exactly the same size
+     * and config, without subsampling.  Starting with KitKat, it can be reused for any
+     * image which fits in its memory.
+     */
+    public static boolean isFlexibleBitmapReuseSupported() {
+        return ApiHelper.getAPILevel() >= 19;
+    }
+
+    /**
+     * @return a number which changes every time the pixels of the bitmap change, or 0 if we can't
+     * tell on this device.
+     */
+    public static int getGenerationId(Bitmap bitmap) {
+        if (ApiHelper.getAPILevel() >= 12) {
+            return Api12Helper.getGenerationId(bitmap);
+        }
+        return 0;
+    }
+
+    /**
+     * Decode into the memory of the given bitmap.  Only has an effect if
+     * {@link #isBitmapReuseSupported()}.
+     */
+    public static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+        if (isBitmapReuseSupported()) {
+            Api11Helper.setInBitmap(options, bitmap);
+        }
+    }
+
+    /**
+     * @return the number of bytes used to store the pixels of the given bitmap.
+     */
+    public static int getByteCount(Bitmap bitmap) {
+        if (ApiHelper.getAPILevel() >= 12) {
+            return Api12Helper.getByteCount(bitmap);
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * @return the size of the memory backing the given bitmap. This may be larger than
+     * {@link #getByteCount(Bitmap)} if the bitmap was reused for a smaller image.
+     */
+    public static int getAllocationByteCount(Bitmap bitmap) {
+        if (ApiHelper.getAPILevel() >= 19) {
+            return Api19Helper.getAllocationByteCount(bitmap);
+        }
+        return getByteCount(bitmap);
+    }
+
+    /**
+     * Make the given unused bitmap hold an image of the given size and config, if its memory allows it.
+     * Before KitKat, this is only possible if the bitmap already has this size and config.
+     *
+     * @return true if the bitmap now has the given size and config.
+     */
+    public static boolean reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+            return true;
+        }
+        if (isFlexibleBitmapReuseSupported()) {
+            try {
+                Api19Helper.reconfigure(bitmap, width, height, config);
+                return true;
+            } catch (IllegalArgumentException e) {
+                // The bitmap is too small.
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets the drawing code skip blending for opaque images, where supported.
+     */
+    public static void setHasAlpha(Bitmap bitmap, boolean hasAlpha) {
+        if (ApiHelper.getAPILevel() >= 12) {
+            Api12Helper.setHasAlpha(bitmap, hasAlpha);
+        }
+    }
 }
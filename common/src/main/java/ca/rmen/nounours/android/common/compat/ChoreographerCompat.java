@@ -0,0 +1,87 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.compat;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Calls back when the display is ready for a new frame, on the thread which created this object.
+ * Before Jelly Bean, we don't know when this happens: the callbacks are aligned on the usual
+ * frame interval instead.
+ */
+public class ChoreographerCompat {
+    private static final long FALLBACK_FRAME_INTERVAL_MS = 16;
+
+    public interface FrameCallback {
+        /**
+         * @param frameTimeNanos the time the frame started, in the {@link System#nanoTime()} time base.
+         */
+        void doFrame(long frameTimeNanos);
+    }
+
+    private final Handler mHandler;
+    // A Choreographer.FrameCallback, starting with Jelly Bean.
+    private final Object mChoreographerFrameCallback;
+    private final Runnable mFallbackFrameCallback;
+
+    /**
+     * Must be created on a thread which has a looper.
+     */
+    public ChoreographerCompat(final FrameCallback frameCallback) {
+        if (ApiHelper.getAPILevel() >= 16) {
+            mHandler = null;
+            mChoreographerFrameCallback = Api16Helper.createFrameCallback(frameCallback);
+            mFallbackFrameCallback = null;
+        } else {
+            mHandler = new Handler();
+            mChoreographerFrameCallback = null;
+            mFallbackFrameCallback = new Runnable() {
+                @Override
+                public void run() {
+                    frameCallback.doFrame(System.nanoTime());
+                }
+            };
+        }
+    }
+
+    /**
+     * Call back once, for the next frame.  Must be called on the thread which created this object.
+     */
+    public void postFrameCallback() {
+        if (mChoreographerFrameCallback != null) {
+            Api16Helper.postFrameCallback(mChoreographerFrameCallback);
+        } else {
+            long now = SystemClock.uptimeMillis();
+            mHandler.postAtTime(mFallbackFrameCallback, now - now % FALLBACK_FRAME_INTERVAL_MS + FALLBACK_FRAME_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Cancel the callback posted by {@link #postFrameCallback()}, if it hasn't happened yet.
+     */
+    public void removeFrameCallback() {
+        if (mChoreographerFrameCallback != null) {
+            Api16Helper.removeFrameCallback(mChoreographerFrameCallback);
+        } else {
+            mHandler.removeCallbacks(mFallbackFrameCallback);
+        }
+    }
+}
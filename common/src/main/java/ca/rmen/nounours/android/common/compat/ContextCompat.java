@@ -0,0 +1,60 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.compat;
+
+import android.content.Context;
+
+public class ContextCompat {
+    public static final int MEMORY_PRESSURE_NONE = 0;
+    public static final int MEMORY_PRESSURE_LIGHT = 1;
+    public static final int MEMORY_PRESSURE_MODERATE = 2;
+    public static final int MEMORY_PRESSURE_CRITICAL = 3;
+
+    private ContextCompat() {
+        // prevent instantiation
+    }
+
+    public interface MemoryPressureListener {
+        /**
+         * @param memoryPressure one of the MEMORY_PRESSURE_ constants: how much memory the system
+         *                       would like us to free.
+         */
+        void onMemoryPressure(int memoryPressure);
+    }
+
+    /**
+     * Notify the listener when the system runs low on memory.  Before Ice Cream Sandwich,
+     * the listener is never notified.
+     *
+     * @return an object to give to {@link #unregisterMemoryPressureListener(Context, Object)}.
+     */
+    public static Object registerMemoryPressureListener(Context context, MemoryPressureListener listener) {
+        if (ApiHelper.getAPILevel() >= 14) {
+            return Api14Helper.registerMemoryPressureListener(context, listener);
+        }
+        return null;
+    }
+
+    public static void unregisterMemoryPressureListener(Context context, Object registration) {
+        if (registration != null && ApiHelper.getAPILevel() >= 14) {
+            Api14Helper.unregisterMemoryPressureListener(context, registration);
+        }
+    }
+}
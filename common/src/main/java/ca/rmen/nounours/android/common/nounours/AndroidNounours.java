@@ -22,12 +22,16 @@ package ca.rmen.nounours.android.common.nounours;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import ca.rmen.nounours.Nounours;
@@ -35,11 +39,13 @@ import ca.rmen.nounours.NounoursAnimationHandler;
 import ca.rmen.nounours.NounoursSoundHandler;
 import ca.rmen.nounours.NounoursVibrateHandler;
 import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.ContextCompat;
 import ca.rmen.nounours.android.common.nounours.cache.ImageCache;
 import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
 import ca.rmen.nounours.android.common.util.ThemeUtil;
 import ca.rmen.nounours.common.R;
+import ca.rmen.nounours.data.Animation;
 import ca.rmen.nounours.data.Image;
 import ca.rmen.nounours.data.Theme;
 import ca.rmen.nounours.io.StreamLoader;
@@ -52,7 +58,20 @@ import ca.rmen.nounours.io.StreamLoader;
  */
 public class AndroidNounours extends Nounours {
 
+    // The priorities of the animations, given to setAnimationPriority(int).  An animation
+    // preempts the ones of lower priority.
+    public static final int PRIORITY_IDLE = 0;
+    public static final int PRIORITY_SHAKE = 1;
+    public static final int PRIORITY_TAP = 2;
+    public static final int PRIORITY_FLING = 3;
+
     private static final String TAG = Constants.TAG + AndroidNounours.class.getSimpleName();
+    // How long Nounours must sit still, without any input, before we go idle.  Only the user
+    // input and becoming visible count: the images Nounours displays by itself, like the library's
+    // idle animation or the tilt images, don't, so this doesn't depend on the idle timeout.
+    private static final long IDLE_DELAY_MS = 30000;
+    // Shared by all the instances in the process: they initialize one after the other.
+    private static ExecutorService sInitExecutor;
 
     private final String mTag;
     private final Context mContext;
@@ -60,16 +79,38 @@ public class AndroidNounours extends Nounours {
     private final NounoursSettings mSettings;
     private final SurfaceHolder mSurfaceHolder;
     private final ThemeLoadListener mListener;
+    private final NounoursSoundHandler mSoundHandler;
+    private final NounoursVibrateHandler mVibrateHandler;
     private int mViewWidth;
     private int mViewHeight;
     private final NounoursResourceCache mNounoursResourceCache;
     private final AtomicBoolean mOkToDraw = new AtomicBoolean(false);
     private final NounoursRenderer mRenderer;
+    private final AnimationHandler mAnimationHandler;
+    // The only thread which draws on the surface.
+    private final RenderThread mRenderThread;
+    // The area of the bitmap which contains the image to display. Also locked while a frame is
+    // drawn, so the surface can't be destroyed in the middle of a frame.
+    private final Rect mImageSrc = new Rect();
+    // The area of the surface which changes between the last image we drew and the new one.
+    private final Rect mDirtyRect = new Rect();
+    // The last image we drew, or null if the next image must be drawn on the whole surface.
+    private String mLastDrawnImageId;
+    private final Object mMemoryPressureRegistration;
+    // Idle state: only changed on the UI thread.
+    private volatile boolean mIsIdle;
+    private volatile long mLastActivityTime;
+    private IdleListener mIdleListener;
+    // Set on the UI thread, once initAsync() has completed.
+    private volatile boolean mIsReady;
+    // Only used on the UI thread: whether pinging was requested before we were ready.
+    private boolean mIsPingEnabled;
+    // Set on the UI thread, read by the threads which load the data files and the themes.
+    private volatile boolean mIsDestroyed;
 
     /**
-     * Open the CSV data files and call the superclass
-     * {@link Nounours#init(StreamLoader, NounoursAnimationHandler, NounoursSoundHandler, NounoursVibrateHandler, InputStream, InputStream, String)}
-     * method.
+     * Prepare Nounours, without reading anything yet: call {@link #initAsync()} to read the data
+     * files and load the theme.
      *
      * @param tag     used for logging, to distinguish between the lwp and app instances
      * @param context The android mContext.
@@ -91,27 +132,81 @@ public class AndroidNounours extends Nounours {
         mSettings = settings;
         mSurfaceHolder = surfaceHolder;
         mListener = listener;
+        mSoundHandler = soundHandler;
+        mVibrateHandler = vibrateHandler;
         mNounoursResourceCache = nounoursResourceCache;
         mRenderer = renderer;
-        StreamLoader streamLoader = new AssetStreamLoader(context);
-
-        String themeId = mSettings.getThemeId();
-        AnimationHandler animationHandler = new AnimationHandler(this);
-        final InputStream propertiesFile = context.getResources().openRawResource(R.raw.nounours);
-        final InputStream themesFile = context.getResources().openRawResource(R.raw.themes);
+        mRenderThread = new RenderThread(TAG + mTag, mFrameRenderer);
+        mAnimationHandler = new AnimationHandler(this, nounoursResourceCache);
         mSurfaceHolder.addCallback(mSurfaceHolderCallback);
+        mMemoryPressureRegistration = ContextCompat.registerMemoryPressureListener(context, mMemoryPressureListener);
+        mLastActivityTime = SystemClock.uptimeMillis();
+        mUIHandler.postDelayed(mIdleCheck, IDLE_DELAY_MS);
+    }
+
+    /**
+     * Open the CSV data files and call the superclass
+     * {@link Nounours#init(StreamLoader, NounoursAnimationHandler, NounoursSoundHandler, NounoursVibrateHandler, InputStream, InputStream, String)}
+     * method, on a background thread.  Returns immediately.  Call this once, on the UI thread.
+     *
+     * Until the initialization is done (see {@link #isReady()}), the surface only shows the
+     * background, and the user input is ignored.  The initialization loads the theme: the
+     * {@link ThemeLoadListener} is notified on the UI thread as usual, with
+     * {@link ThemeLoadListener#onThemeLoadComplete()} once Nounours can be displayed.
+     */
+    public void initAsync() {
+        Log.v(TAG + mTag, "initAsync");
+        final String themeId = mSettings.getThemeId();
+        getInitExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsDestroyed) return;
+                StreamLoader streamLoader = new AssetStreamLoader(mContext);
+                final InputStream propertiesFile = mContext.getResources().openRawResource(R.raw.nounours);
+                final InputStream themesFile = mContext.getResources().openRawResource(R.raw.themes);
+                try {
+                    init(streamLoader, mAnimationHandler, mSoundHandler, mVibrateHandler, propertiesFile,
+                            themesFile, themeId);
+                    if (releaseIfDestroyed()) return;
+                    runTask(mInitComplete);
+                } catch (final IOException e) {
+                    Log.e(TAG + mTag, "Error initializing nounours", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true once the data files have been read.  The theme may still be loading.
+     */
+    public boolean isReady() {
+        return mIsReady;
+    }
+
+    private static synchronized ExecutorService getInitExecutor() {
+        if (sInitExecutor == null) sInitExecutor = Executors.newSingleThreadExecutor();
+        return sInitExecutor;
+    }
 
-        try {
-            init(streamLoader, animationHandler, soundHandler, vibrateHandler, propertiesFile,
-                    themesFile, themeId);
+    private final Runnable mInitComplete = new Runnable() {
+        @Override
+        public void run() {
+            Log.v(TAG + mTag, "init complete");
+            if (mIsDestroyed) return;
+            mIsReady = true;
             setEnableVibrate(mSettings.isSoundEnabled());
             setEnableSound(mSettings.isSoundEnabled());
             setIdleTimeout(mSettings.getIdleTimeout());
-        } catch (final IOException e) {
-            Log.e(TAG + mTag, "Error initializing nounours", e);
+            if (mIsPingEnabled) AndroidNounours.super.doPing(true);
+            // The theme may have been changed in the settings while we were reading the files.
+            reloadThemeFromPreference();
         }
-    }
+    };
 
+    /**
+     * Only blocks until the images needed to display Nounours are loaded. The rest of the theme
+     * is loaded in the background, so we stop loading (see {@link #isLoading()}) sooner.
+     */
     @Override
     protected boolean cacheResources() {
         Theme theme = getCurrentTheme();
@@ -125,12 +220,15 @@ public class AndroidNounours extends Nounours {
     @Override
     public void useTheme(final String id) {
         Log.v(TAG + mTag, "useTheme " + id);
+        if (mIsDestroyed) return;
 
         // Get the name of this theme.
         Theme theme = getThemes().get(id);
         CharSequence themeLabel = ThemeUtil.getThemeLabel(mContext, theme);
 
         // MEMORY
+        invalidateSurface();
+        mRenderer.invalidate();
         mNounoursResourceCache.freeImages();
         mNounoursResourceCache.freeSounds();
 
@@ -138,8 +236,9 @@ public class AndroidNounours extends Nounours {
             @SuppressWarnings("synthetic-access")
             @Override
             public void run() {
-
+                if (mIsDestroyed) return;
                 AndroidNounours.super.useTheme(id);
+                if (releaseIfDestroyed()) return;
 
                 runTask(new Runnable() {
                     public void run() {
@@ -148,32 +247,266 @@ public class AndroidNounours extends Nounours {
                 });
             }
         };
-        mListener.onThemeLoadStart(theme.getImages().size(), mContext.getString(R.string.loading, themeLabel));
+        final int imageCount = theme.getImages().size();
+        final String message = mContext.getString(R.string.loading, themeLabel);
+        // The first theme is loaded from the init thread: the listener is only called on the UI thread.
+        runTask(new Runnable() {
+            public void run() {
+                mListener.onThemeLoadStart(imageCount, message);
+            }
+        });
         themeLoader.start();
     }
 
     /**
-     * Display a picture on the screen.
+     * If we were destroyed while the data files or a theme were loading, release the images and
+     * sounds the load acquired: onDestroy() may have run before they were acquired.  Called on
+     * the thread which loaded them.
+     *
+     * @return true if we were destroyed.
+     */
+    private boolean releaseIfDestroyed() {
+        if (!mIsDestroyed) return false;
+        Log.v(TAG + mTag, "Destroyed while loading: releasing the theme");
+        mNounoursResourceCache.freeImages();
+        mNounoursResourceCache.freeSounds();
+        return true;
+    }
+
+    /**
+     * @param idleListener notified when Nounours starts or stops sitting still.  May be null.
+     */
+    public void setIdleListener(IdleListener idleListener) {
+        mIdleListener = idleListener;
+    }
+
+    /**
+     * @return true if Nounours has been sitting still, without any input, for a while.
+     */
+    public boolean isIdle() {
+        return mIsIdle;
+    }
+
+    @Override
+    public void onPress(int x, int y) {
+        if (!mIsReady) return;
+        onActivity();
+        super.onPress(x, y);
+    }
+
+    @Override
+    public void onMove(int x, int y) {
+        if (!mIsReady) return;
+        onActivity();
+        super.onMove(x, y);
+    }
+
+    @Override
+    public void onRelease() {
+        if (!mIsReady) return;
+        onActivity();
+        super.onRelease();
+    }
+
+    /**
+     * Called when we become visible or hidden.  Becoming visible wakes Nounours up.
+     * If we're not ready yet, pinging starts once we are.
+     */
+    @Override
+    public void doPing(boolean isEnabled) {
+        if (isEnabled) onActivity();
+        mIsPingEnabled = isEnabled;
+        if (mIsReady) super.doPing(isEnabled);
+    }
+
+    @Override
+    public void onResume() {
+        if (mIsReady) super.onResume();
+    }
+
+    @Override
+    public void stopSound() {
+        if (mIsReady) super.stopSound();
+    }
+
+    /**
+     * Set the priority of the animations started by the current thread, until this is called
+     * again.  The input listeners set it around the events they forward to Nounours.  The
+     * animations the library starts on its own, like the idle ping, keep the idle priority.
+     *
+     * @param priority one of the PRIORITY_ constants.
+     * @return the previous priority, to restore once the event is handled.
+     */
+    public int setAnimationPriority(int priority) {
+        return mAnimationHandler.setRequestPriority(priority);
+    }
+
+    @Override
+    public void onFling(int x, int y, float vX, float vY) {
+        if (!mIsReady) return;
+        onActivity();
+        super.onFling(x, y, vX, vY);
+    }
+
+    @Override
+    public void onShake() {
+        if (!mIsReady) return;
+        onActivity();
+        super.onShake();
+    }
+
+    /**
+     * Also called by the library.  Only the animations requested by an input source, with a
+     * priority above idle, count as activity.
+     */
+    @Override
+    public void doAnimation(Animation animation) {
+        if (!mIsReady) return;
+        if (mAnimationHandler.getRequestPriority() > PRIORITY_IDLE) onActivity();
+        super.doAnimation(animation);
+    }
+
+    @Override
+    public void doRandomAnimation() {
+        if (!mIsReady) return;
+        if (mAnimationHandler.getRequestPriority() > PRIORITY_IDLE) onActivity();
+        super.doRandomAnimation();
+    }
+
+    /**
+     * Choose what to do when an animation frame can't be displayed on time.  By default, late
+     * frames are skipped so the animations keep their tempo.
+     */
+    public void setLateFramePolicy(LateFramePolicy lateFramePolicy) {
+        mAnimationHandler.setLateFramePolicy(lateFramePolicy);
+    }
+
+    /**
+     * @return how well the last animation kept to its schedule, or null if no animation was completed.
+     */
+    public AnimationStats getLastAnimationStats() {
+        return mAnimationHandler.getLastAnimationStats();
+    }
+
+    /**
+     * Display a picture on the screen.  The picture is drawn by the render thread, on the next frame.
      *
      * @see ca.rmen.nounours.Nounours#displayImage(ca.rmen.nounours.data.Image)
      */
     @Override
     protected void displayImage(final Image image) {
-        Log.v(TAG + mTag, "displayImage " + image);
+        // No logging here: this is called for every frame, and we don't want to allocate anything.
         if (image == null) return;
+        mRenderThread.publish(image);
+    }
+
+    /**
+     * Draw the given image on the surface.  Only called on the render thread.
+     */
+    private void renderFrame(Image image) {
         if (!mOkToDraw.get()) return;
-        final Bitmap bitmap = mNounoursResourceCache.getDrawableImage(mContext, image);
-        if (bitmap == null) return;
+        synchronized (mImageSrc) {
+            final Bitmap bitmap = mNounoursResourceCache.getDrawableImage(mContext, image, mImageSrc);
+            if (bitmap == null) return;
+
+            // If we know what changed since the last image, only that part of the surface is drawn.
+            boolean isPartialDraw = mLastDrawnImageId != null
+                    && mNounoursResourceCache.getFrameDiff(mLastDrawnImageId, image.getId(), mImageSrc, mDirtyRect);
+            if (isPartialDraw) {
+                if (mDirtyRect.isEmpty()) {
+                    mLastDrawnImageId = image.getId();
+                    return;
+                }
+                mRenderer.mapToView(mImageSrc, mDirtyRect, mViewWidth, mViewHeight);
+            }
 
-        Canvas c = mSurfaceHolder.lockCanvas();
-        if (c != null) {
-            mRenderer.render(mSettings, bitmap, c, mViewWidth, mViewHeight);
-            mSurfaceHolder.unlockCanvasAndPost(c);
+            Canvas c = isPartialDraw ? mSurfaceHolder.lockCanvas(mDirtyRect) : mSurfaceHolder.lockCanvas();
+            if (c != null) {
+                mRenderer.render(mSettings, image.getId(), bitmap, mImageSrc, c, mViewWidth, mViewHeight);
+                mSurfaceHolder.unlockCanvasAndPost(c);
+                mLastDrawnImageId = image.getId();
+            }
         }
     }
 
+    /**
+     * Something happened: postpone going idle, or wake up if we're idle.  May be called from any thread.
+     */
+    private void onActivity() {
+        mLastActivityTime = SystemClock.uptimeMillis();
+        if (mIsIdle) mUIHandler.post(mWakeUp);
+    }
+
+    /**
+     * Go idle once we've spent {@link #IDLE_DELAY_MS} without activity or animation: the sensors
+     * are turned off by the idle listener, and only the images on the screen are kept.
+     */
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsIdle) return;
+            long quietTime = SystemClock.uptimeMillis() - mLastActivityTime;
+            if (quietTime < IDLE_DELAY_MS || isAnimationRunning() || isLoading()) {
+                mUIHandler.postDelayed(this, Math.max(IDLE_DELAY_MS - quietTime, 1000));
+                return;
+            }
+            Log.v(TAG + mTag, "Going idle");
+            mIsIdle = true;
+            Image currentImage = getCurrentImage();
+            // Keep the image on the screen ready to draw, for a redraw or the wake up.
+            mRenderer.retainOnly(currentImage == null ? null : currentImage.getId());
+            mNounoursResourceCache.onIdle(currentImage);
+            if (mIdleListener != null) mIdleListener.onIdle();
+        }
+    };
+
+    private final Runnable mWakeUp = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsIdle) return;
+            Log.v(TAG + mTag, "Waking up");
+            mIsIdle = false;
+            mNounoursResourceCache.onActive();
+            if (mIdleListener != null) mIdleListener.onActive();
+            mUIHandler.postDelayed(mIdleCheck, IDLE_DELAY_MS);
+        }
+    };
+
+    /**
+     * Draw the current image on the whole surface, or the placeholder if there's no image yet.
+     */
     public void redraw() {
-        displayImage(getCurrentImage());
+        invalidateSurface();
+        Image image = getCurrentImage();
+        if (image == null) mRenderThread.post(mDrawPlaceholder);
+        else displayImage(image);
+    }
+
+    /**
+     * Fill the surface with the background, until the first image is drawn.  Run on the render thread.
+     */
+    private final Runnable mDrawPlaceholder = new Runnable() {
+        @Override
+        public void run() {
+            if (!mOkToDraw.get()) return;
+            synchronized (mImageSrc) {
+                if (mLastDrawnImageId != null) return;
+                Canvas c = mSurfaceHolder.lockCanvas();
+                if (c != null) {
+                    mRenderer.renderPlaceholder(mSettings, c);
+                    mSurfaceHolder.unlockCanvasAndPost(c);
+                }
+            }
+        }
+    };
+
+    /**
+     * The next image will be drawn on the whole surface.
+     */
+    private void invalidateSurface() {
+        synchronized (mImageSrc) {
+            mLastDrawnImageId = null;
+        }
     }
 
     /**
@@ -204,6 +537,13 @@ public class AndroidNounours extends Nounours {
      */
     public void onDestroy() {
         Log.v(TAG + mTag, "destroy");
+        mIsDestroyed = true;
+        mUIHandler.removeCallbacks(mInitComplete);
+        ContextCompat.unregisterMemoryPressureListener(mContext, mMemoryPressureRegistration);
+        mRenderThread.quit();
+        mUIHandler.removeCallbacks(mIdleCheck);
+        mUIHandler.removeCallbacks(mWakeUp);
+        mRenderer.invalidate();
         mNounoursResourceCache.freeImages();
         mNounoursResourceCache.freeSounds();
     }
@@ -222,6 +562,8 @@ public class AndroidNounours extends Nounours {
      * Reread the shared preferences and apply the new app_settings.
      */
     public void reloadSettings() {
+        // The settings are applied when the initialization completes.
+        if (!mIsReady) return;
         if (mSettings.isSoundEnabled() && !isSoundEnabled()) {
             mNounoursResourceCache.loadSounds(getCurrentTheme());
         } else if (!mSettings.isSoundEnabled() && isSoundEnabled()) {
@@ -231,6 +573,8 @@ public class AndroidNounours extends Nounours {
         setEnableSound(mSettings.isSoundEnabled());
         setEnableVibrate(mSettings.isSoundEnabled());
         setIdleTimeout(mSettings.getIdleTimeout());
+        // The display settings may have changed.
+        invalidateSurface();
         reloadThemeFromPreference();
     }
 
@@ -263,6 +607,8 @@ public class AndroidNounours extends Nounours {
             Log.v(TAG + mTag, "surfaceChanged");
             mViewWidth = width;
             mViewHeight = height;
+            mNounoursResourceCache.setSurfaceSize(width, height);
+            mRenderer.invalidate();
             redraw();
         }
 
@@ -270,6 +616,25 @@ public class AndroidNounours extends Nounours {
         public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
             Log.v(TAG + mTag, "surfaceDestroyed");
             mOkToDraw.set(false);
+            invalidateSurface();
+        }
+    };
+
+    private final RenderThread.FrameRenderer mFrameRenderer = new RenderThread.FrameRenderer() {
+        @Override
+        public void renderFrame(Image image) {
+            AndroidNounours.this.renderFrame(image);
+        }
+    };
+
+    private final ContextCompat.MemoryPressureListener mMemoryPressureListener = new ContextCompat.MemoryPressureListener() {
+        @Override
+        public void onMemoryPressure(int memoryPressure) {
+            Log.v(TAG + mTag, "onMemoryPressure " + memoryPressure);
+            // The scaled images are rendered again from the images we keep.
+            mRenderer.invalidate();
+            mNounoursResourceCache.onMemoryPressure(memoryPressure, getCurrentImage());
+            invalidateSurface();
         }
     };
 
@@ -24,33 +24,57 @@ import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import ca.rmen.nounours.Nounours;
 import ca.rmen.nounours.NounoursAnimationHandler;
 import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
+import ca.rmen.nounours.android.common.nounours.cache.PinnedImages;
 import ca.rmen.nounours.data.Animation;
 import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
 
 /**
  * Manages the Nounours animations displayed to the Android device.
+ * <p/>
+ * Each animation request has a priority.  A request preempts the animation of lower priority
+ * which is playing, within a frame.  Only one request waits for the current animation to
+ * complete: a newer request replaces it, unless the newer one has a lower priority.
  *
  * @author Carmen Alvarez
  */
 class AnimationHandler implements NounoursAnimationHandler {
     private static final String TAG = Constants.TAG + AnimationHandler.class.getSimpleName();
+    // How long we wait for the images of an animation to be loaded before we start playing it anyway.
+    private static final long PREFETCH_TIMEOUT_MS = 500;
+    // How long a new animation may wait for the prefetch of the current one to be preempted.
+    private static final long PREFETCH_POLL_MS = 16;
 
     private final Nounours mNounours;
-    private final AtomicBoolean mIsDoingAnimation = new AtomicBoolean();
+    private final NounoursResourceCache mNounoursResourceCache;
     private final Handler mBackgroundHandler;
-    private final AnimationTask mAnimationTask;
+    // The priority of the animations requested by the current thread.
+    private final ThreadLocal<Integer> mRequestPriority = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return AndroidNounours.PRIORITY_IDLE;
+        }
+    };
+    // Guarded by this. The animation thread waits on this between frames.
+    private AnimationRequest mCurrentRequest;
+    private AnimationRequest mPendingRequest;
+    private volatile LateFramePolicy mLateFramePolicy = LateFramePolicy.SKIP;
+    private volatile AnimationStats mLastAnimationStats;
 
-    public AnimationHandler(Nounours nounours) {
+    public AnimationHandler(Nounours nounours, NounoursResourceCache nounoursResourceCache) {
         mNounours = nounours;
+        mNounoursResourceCache = nounoursResourceCache;
         HandlerThread thread = new HandlerThread(TAG);
         thread.start();
         mBackgroundHandler = new Handler(thread.getLooper());
-        mAnimationTask = new AnimationTask();
     }
 
     /**
@@ -58,31 +82,84 @@ class AnimationHandler implements NounoursAnimationHandler {
      * @see ca.rmen.nounours.Nounours#isAnimationRunning()
      */
     @Override
-    public boolean isAnimationRunning() {
+    public synchronized boolean isAnimationRunning() {
         Log.v(TAG, "isAnimationRunning");
-        return mIsDoingAnimation.get();
+        return mCurrentRequest != null || mPendingRequest != null;
     }
 
     /**
-     * The user selected an animation from the menu. Display the animation.
+     * Display the animation, with the priority given to {@link #setRequestPriority(int)} on this
+     * thread.
      *
      * @see ca.rmen.nounours.Nounours#doAnimation(Animation, boolean)
      */
     @Override
     public void doAnimation(final Animation animation, final boolean isDynamicAnimation) {
-        Log.v(TAG, "doAnimation: " + animation);
-        mAnimationTask.setAnimation(animation, isDynamicAnimation);
-        mBackgroundHandler.post(mAnimationTask);
+        AnimationRequest request = new AnimationRequest(animation, isDynamicAnimation, mRequestPriority.get());
+        Log.v(TAG, "doAnimation: " + request);
+        synchronized (this) {
+            if ((mCurrentRequest != null && request.priority < mCurrentRequest.priority)
+                    || (mPendingRequest != null && request.priority < mPendingRequest.priority)) {
+                Log.v(TAG, "Ignoring " + request + ": an animation with a higher priority is playing");
+                return;
+            }
+            if (mPendingRequest != null) Log.v(TAG, "Replacing " + mPendingRequest + " with " + request);
+            mPendingRequest = request;
+            if (mCurrentRequest != null && request.priority > mCurrentRequest.priority) {
+                Log.v(TAG, request + " preempts " + mCurrentRequest);
+                mCurrentRequest.isPreempted = true;
+                notifyAll();
+            }
+        }
+        mBackgroundHandler.post(mAnimationRunner);
     }
 
     /**
-     * Stop the currently running animation, if there is one.
+     * Stop the currently running animation, if there is one, and forget the one waiting to be played.
      *
      * @see ca.rmen.nounours.Nounours#stopAnimation()
      */
     @Override
-    public void stopAnimation() {
-        mIsDoingAnimation.set(false);
+    public synchronized void stopAnimation() {
+        mPendingRequest = null;
+        if (mCurrentRequest != null) {
+            mCurrentRequest.isStopped = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Set the priority of the animations requested by the current thread, until this is called again.
+     *
+     * @param priority one of the AndroidNounours.PRIORITY_ constants.
+     * @return the previous priority, to give back to this method.
+     */
+    int setRequestPriority(int priority) {
+        int previousPriority = mRequestPriority.get();
+        mRequestPriority.set(priority);
+        return previousPriority;
+    }
+
+    /**
+     * @return the priority of the animations requested by the current thread.
+     */
+    int getRequestPriority() {
+        return mRequestPriority.get();
+    }
+
+    /**
+     * Choose what to do when an animation frame can't be displayed on time.
+     * Applies to the animations started after this call.
+     */
+    void setLateFramePolicy(LateFramePolicy lateFramePolicy) {
+        mLateFramePolicy = lateFramePolicy;
+    }
+
+    /**
+     * @return how well the last animation kept to its schedule, or null if we haven't completed an animation.
+     */
+    AnimationStats getLastAnimationStats() {
+        return mLastAnimationStats;
     }
 
     /**
@@ -95,40 +172,157 @@ class AnimationHandler implements NounoursAnimationHandler {
         // Do nothing
     }
 
-    private class AnimationTask implements Runnable {
+    /**
+     * Plays the requests one after the other, on the animation thread.
+     */
+    private final Runnable mAnimationRunner = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                AnimationRequest request;
+                synchronized (AnimationHandler.this) {
+                    request = mPendingRequest;
+                    mPendingRequest = null;
+                    mCurrentRequest = request;
+                }
+                if (request == null) return;
+                play(request);
+                synchronized (AnimationHandler.this) {
+                    mCurrentRequest = null;
+                }
+                // A preempted animation leaves Nounours as it is: the next animation takes over.
+                if (!request.isDynamicAnimation && !request.isPreempted) mNounours.reset();
+            }
+        }
+    };
+
+    private void play(AnimationRequest request) {
+        // Don't let a frame wait for its image to be decoded, or be evicted before it's displayed again.
+        List<AnimationImage> images = request.animation.getImages();
+        Set<Image> distinctImages = new LinkedHashSet<>();
+        for (AnimationImage image : images) {
+            distinctImages.add(image.getImage());
+        }
+        PinnedImages pinnedImages = mNounoursResourceCache.pinImages(distinctImages);
+        if (pinnedImages == null) {
+            playFrames(request, images);
+            return;
+        }
+        try {
+            if (!awaitLoaded(request, pinnedImages)) {
+                if (request.isCancelled()) return;
+                Log.v(TAG, "Playing " + request + " before all its images are loaded");
+            }
+            playFrames(request, images);
+        } finally {
+            pinnedImages.unpin();
+        }
+    }
 
-        private Animation mAnimation;
-        private boolean mIsDynamicAnimation;
+    /**
+     * Wait for the images of the given request, a frame at a time, so a new animation doesn't
+     * have to wait for the prefetch to time out to preempt this one.
+     *
+     * @return true if all the images are in memory.
+     */
+    private boolean awaitLoaded(AnimationRequest request, PinnedImages pinnedImages) {
+        long deadline = SystemClock.uptimeMillis() + PREFETCH_TIMEOUT_MS;
+        long now;
+        while (!request.isCancelled() && (now = SystemClock.uptimeMillis()) < deadline) {
+            if (pinnedImages.awaitLoaded(Math.min(PREFETCH_POLL_MS, deadline - now))) return true;
+            // A decode failed: waiting longer won't help.
+            if (pinnedImages.isDone()) return false;
+        }
+        return false;
+    }
 
-        public void setAnimation(Animation animation, boolean isDynamicAnimation) {
-            mAnimation = animation;
-            mIsDynamicAnimation = isDynamicAnimation;
+    /**
+     * The time of each frame is computed from the start of the animation, on the uptime clock,
+     * so the time spent displaying the frames and the changes of the wall clock don't add up
+     * over the repeats.
+     */
+    private void playFrames(AnimationRequest request, List<AnimationImage> images) {
+        Animation animation = request.animation;
+        // When each frame starts, relative to the start of its repeat.
+        long[] frameOffsets = new long[images.size() + 1];
+        for (int j = 0; j < images.size(); j++) {
+            frameOffsets[j + 1] = frameOffsets[j] + (long) (animation.getInterval() * images.get(j).getDuration());
         }
+        long repeatDuration = frameOffsets[images.size()];
+        LateFramePolicy lateFramePolicy = mLateFramePolicy;
+        int repeat = animation.getRepeat();
 
-        @Override
-        public void run() {
-            // Note that we are doing an animation
-            mIsDoingAnimation.set(true);
-
-            // Iterate through each of the images and display them.
-            for (int i = 0; i < mAnimation.getRepeat(); i++) {
-                for (AnimationImage image : mAnimation.getImages()) {
-                    long before = System.currentTimeMillis();
-                    mNounours.setImage(image.getImage());
-                    long frameDuration = (long) (mAnimation.getInterval() * image.getDuration());
-                    // after - before: time wasted displaying the image itself.
-                    // we'll subtract it from the time to sleep for this frame.
-                    long after = System.currentTimeMillis();
-                    long frameDurationCorrection = after - before;
-                    long shorterFrameDuration = frameDuration - frameDurationCorrection;
-                    if (shorterFrameDuration > 0) SystemClock.sleep(shorterFrameDuration);
-                    if(!mIsDoingAnimation.get()) break;
+        long startTime = SystemClock.uptimeMillis();
+        int frameCount = 0;
+        int droppedFrameCount = 0;
+        long totalJitter = 0;
+        long maxJitter = 0;
+        frames:
+        for (int i = 0; i < repeat; i++) {
+            for (int j = 0; j < images.size(); j++) {
+                if (request.isCancelled()) break frames;
+                long frameStart = startTime + i * repeatDuration + frameOffsets[j];
+                long frameEnd = startTime + i * repeatDuration + frameOffsets[j + 1];
+                long now = SystemClock.uptimeMillis();
+                boolean isLastFrame = i == repeat - 1 && j == images.size() - 1;
+                if (lateFramePolicy == LateFramePolicy.SKIP && now >= frameEnd && !isLastFrame) {
+                    droppedFrameCount++;
+                    continue;
+                }
+                mNounours.setImage(images.get(j).getImage());
+                long jitter = Math.max(0, now - frameStart);
+                frameCount++;
+                totalJitter += jitter;
+                maxJitter = Math.max(maxJitter, jitter);
+                if (lateFramePolicy == LateFramePolicy.STRETCH) {
+                    // Delay the rest of the animation by the time this frame lost.
+                    startTime += jitter;
+                    frameEnd += jitter;
                 }
-                if(!mIsDoingAnimation.get()) break;
+                waitUntil(request, frameEnd);
             }
-            if (!mIsDynamicAnimation) mNounours.reset();
-            // No longer doing an animation.
-            mIsDoingAnimation.set(false);
+        }
+        mLastAnimationStats = new AnimationStats(animation.getId(), frameCount, droppedFrameCount,
+                frameCount == 0 ? 0 : totalJitter / frameCount, maxJitter);
+        Log.v(TAG, "Animation complete: " + mLastAnimationStats);
+    }
+
+    /**
+     * Wait until the given uptime, or until the given request is cancelled.
+     */
+    private synchronized void waitUntil(AnimationRequest request, long uptimeMillis) {
+        long now;
+        while (!request.isCancelled() && (now = SystemClock.uptimeMillis()) < uptimeMillis) {
+            try {
+                wait(uptimeMillis - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class AnimationRequest {
+        final Animation animation;
+        final boolean isDynamicAnimation;
+        final int priority;
+        // Read on the animation thread, between frames.
+        volatile boolean isPreempted;
+        volatile boolean isStopped;
+
+        AnimationRequest(Animation animation, boolean isDynamicAnimation, int priority) {
+            this.animation = animation;
+            this.isDynamicAnimation = isDynamicAnimation;
+            this.priority = priority;
+        }
+
+        boolean isCancelled() {
+            return isPreempted || isStopped;
+        }
+
+        @Override
+        public String toString() {
+            return animation.getId() + "(priority " + priority + ")";
         }
     }
 }
@@ -0,0 +1,81 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours;
+
+/**
+ * How well an animation kept to its schedule.
+ */
+public class AnimationStats {
+    private final String mAnimationId;
+    private final int mFrameCount;
+    private final int mDroppedFrameCount;
+    private final long mMeanJitterMs;
+    private final long mMaxJitterMs;
+
+    AnimationStats(String animationId, int frameCount, int droppedFrameCount, long meanJitterMs, long maxJitterMs) {
+        mAnimationId = animationId;
+        mFrameCount = frameCount;
+        mDroppedFrameCount = droppedFrameCount;
+        mMeanJitterMs = meanJitterMs;
+        mMaxJitterMs = maxJitterMs;
+    }
+
+    public String getAnimationId() {
+        return mAnimationId;
+    }
+
+    /**
+     * @return the number of frames which were displayed.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the number of frames which were skipped because they were late.
+     */
+    public int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * @return how late the displayed frames were, on average, in milliseconds.
+     */
+    public long getMeanJitterMs() {
+        return mMeanJitterMs;
+    }
+
+    /**
+     * @return how late the latest of the displayed frames was, in milliseconds.
+     */
+    public long getMaxJitterMs() {
+        return mMaxJitterMs;
+    }
+
+    @Override
+    public String toString() {
+        return "AnimationStats{" + mAnimationId
+                + ": frames=" + mFrameCount
+                + ", dropped=" + mDroppedFrameCount
+                + ", meanJitterMs=" + mMeanJitterMs
+                + ", maxJitterMs=" + mMaxJitterMs
+                + "}";
+    }
+}
@@ -28,7 +28,8 @@ import java.net.URI;
 import ca.rmen.nounours.io.StreamLoader;
 
 /**
- * Allows Nounours to read Android asset files.
+ * Allows Nounours to read Android asset files.  The theme files are read from the theme bundle,
+ * if the build created one.
  */
 class AssetStreamLoader implements StreamLoader {
     private static final String ANDROID_ASSET = "/android_asset/";
@@ -45,6 +46,6 @@ class AssetStreamLoader implements StreamLoader {
     public InputStream open(URI uri) throws IOException {
         String path = uri.getPath();
         path = path.substring(ANDROID_ASSET.length());
-        return mContext.getAssets().open(path);
+        return ThemeBundle.openAsset(mContext, path);
     }
 }
@@ -4,44 +4,138 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
-import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 
+import ca.rmen.nounours.android.common.nounours.cache.MemoryBudget;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
 
+/**
+ * Draws Nounours centered in the view.  Nothing is allocated while drawing an image we've
+ * drawn before: we draw a lot of frames, and on old devices the garbage collector makes the
+ * animations stutter.
+ */
 public class NounoursRenderer {
+    private final RenderCache mRenderCache;
+    private final Rect mDstRect = new Rect();
+    private final Paint mPaint = new Paint();
+    private final Paint mGrayscalePaint = new Paint();
+
+    public NounoursRenderer() {
+        this(MemoryBudget.getRenderCacheBytes());
+    }
+
+    /**
+     * @param maxRenderCacheSizeBytes how much memory the renderers of the process can use to keep scaled images.
+     */
+    NounoursRenderer(long maxRenderCacheSizeBytes) {
+        mRenderCache = new RenderCache(maxRenderCacheSizeBytes);
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0);
+        mGrayscalePaint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+    }
+
     public void render(NounoursSettings settings,
+                       String imageId,
                        Bitmap bitmap,
                        Canvas c,
                        int viewWidth, int viewHeight) {
-        int bitmapWidth = bitmap.getWidth();
-        int bitmapHeight = bitmap.getHeight();
-        int deviceCenterX = viewWidth / 2;
-        int deviceCenterY = viewHeight / 2;
-        int bitmapCenterX = bitmapWidth / 2;
-        int bitmapCenterY = bitmapHeight / 2;
-
-        float scaleX = (float) viewWidth / bitmapWidth;
-        float scaleY = (float) viewHeight / bitmapHeight;
-        float offsetX = deviceCenterX - bitmapCenterX;
-        float offsetY = deviceCenterY - bitmapCenterY;
+        render(settings, imageId, bitmap, null, c, viewWidth, viewHeight);
+    }
 
+    /**
+     * @param imageId the id of the image in the theme.
+     * @param src     the area of the bitmap which contains the image to draw, or null for the whole bitmap.
+     */
+    public void render(NounoursSettings settings,
+                       String imageId,
+                       Bitmap bitmap,
+                       Rect src,
+                       Canvas c,
+                       int viewWidth, int viewHeight) {
+        synchronized (mRenderCache) {
+            Bitmap scaledBitmap = mRenderCache.getScaledBitmap(settings, imageId, bitmap, src, viewWidth, viewHeight);
+            if (scaledBitmap != null) {
+                c.drawColor(mRenderCache.getBackgroundColor());
+                c.drawBitmap(scaledBitmap,
+                        (viewWidth - scaledBitmap.getWidth()) / 2,
+                        (viewHeight - scaledBitmap.getHeight()) / 2,
+                        null);
+                return;
+            }
+        }
+        // The image is too big for the cache: scale it while drawing it.
+        int srcWidth = src == null ? bitmap.getWidth() : src.width();
+        int srcHeight = src == null ? bitmap.getHeight() : src.height();
+        float scaleX = (float) viewWidth / srcWidth;
+        float scaleY = (float) viewHeight / srcHeight;
         float scaleToUse = (scaleX < scaleY) ? scaleX : scaleY;
+        int dstWidth = Math.round(srcWidth * scaleToUse);
+        int dstHeight = Math.round(srcHeight * scaleToUse);
+
         if (settings.isGrayscale()) c.drawColor(0xff000000);
         else c.drawColor(settings.getBackgroundColor());
-        Matrix m = new Matrix();
-        m.postTranslate(offsetX, offsetY);
-        m.postScale(scaleToUse, scaleToUse, deviceCenterX, deviceCenterY);
-        c.setMatrix(m);
-
-        Paint paint = new Paint();
-        if (settings.isGrayscale()) {
-            ColorMatrix colorMatrix = new ColorMatrix();
-            colorMatrix.setSaturation(0);
-            ColorMatrixColorFilter filter = new ColorMatrixColorFilter(colorMatrix);
-            paint.setColorFilter(filter);
+        // The rect is shared: only one thread at a time can use it.
+        synchronized (mDstRect) {
+            int left = (viewWidth - dstWidth) / 2;
+            int top = (viewHeight - dstHeight) / 2;
+            mDstRect.set(left, top, left + dstWidth, top + dstHeight);
+            c.drawBitmap(bitmap, src, mDstRect, settings.isGrayscale() ? mGrayscalePaint : mPaint);
         }
-        c.drawBitmap(bitmap, 0, 0, paint);
-        if (settings.isImageDimmed()) c.drawColor(0x88000000);
+        if (settings.isImageDimmed()) c.drawColor(RenderCache.DIM_COLOR);
+    }
+
+    /**
+     * Draw only the background, while there's no image to draw yet.
+     */
+    public void renderPlaceholder(NounoursSettings settings, Canvas c) {
+        if (settings.isGrayscale()) c.drawColor(0xff000000);
+        else c.drawColor(settings.getBackgroundColor());
+    }
+
+    /**
+     * Find the area of the view covered by an area of the image, when the image is drawn by
+     * {@link #render(NounoursSettings, String, Bitmap, Rect, Canvas, int, int)}.
+     *
+     * @param src  the area of the bitmap which contains the image.
+     * @param rect in: an area of the image, relative to its top-left corner. Out: the area of
+     *             the view in which this part of the image is drawn, including the pixels
+     *             touched by filtering.
+     */
+    public void mapToView(Rect src, Rect rect, int viewWidth, int viewHeight) {
+        int srcWidth = src.width();
+        int srcHeight = src.height();
+        float scale = Math.min((float) viewWidth / srcWidth, (float) viewHeight / srcHeight);
+        int dstWidth = Math.max(1, Math.round(srcWidth * scale));
+        int dstHeight = Math.max(1, Math.round(srcHeight * scale));
+        int offsetX = (viewWidth - dstWidth) / 2;
+        int offsetY = (viewHeight - dstHeight) / 2;
+        float scaleX = (float) dstWidth / srcWidth;
+        float scaleY = (float) dstHeight / srcHeight;
+        // When the image is scaled up, a source pixel is blended into the pixels around it.
+        int margin = (int) Math.ceil(Math.max(scaleX, scaleY)) + 1;
+        rect.set(offsetX + (int) Math.floor(rect.left * scaleX) - margin,
+                offsetY + (int) Math.floor(rect.top * scaleY) - margin,
+                offsetX + (int) Math.ceil(rect.right * scaleX) + margin,
+                offsetY + (int) Math.ceil(rect.bottom * scaleY) + margin);
+        if (!rect.intersect(0, 0, viewWidth, viewHeight)) rect.setEmpty();
+    }
+
+    /**
+     * Forget the images we scaled.  The cache notices size and settings changes by itself, but
+     * this frees the memory right away.
+     */
+    public void invalidate() {
+        mRenderCache.clear();
+    }
+
+    /**
+     * Forget the images we scaled, except the given one, so it can be drawn again without
+     * scaling it.
+     *
+     * @param imageId the image on the screen, or null to forget all the images.
+     */
+    public void retainOnly(String imageId) {
+        mRenderCache.retainOnly(imageId);
     }
 }
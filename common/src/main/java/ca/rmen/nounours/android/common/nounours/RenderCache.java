@@ -0,0 +1,266 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
+import ca.rmen.nounours.android.common.settings.NounoursSettings;
+
+/**
+ * Keeps the images already scaled to the size of the surface, with the grayscale and dimming
+ * settings applied, so that displaying an image is a single unscaled draw.
+ * The cache is emptied when the surface size or the settings change.
+ * <p/>
+ * The images are looked up by image id.  We don't keep the original bitmaps alive: they belong
+ * to the image cache, which may evict them.  The scaled image is only used if it was drawn from
+ * the same pixels: the same bitmap, in the same generation.
+ * <p/>
+ * The maximum size is shared by the render caches of all the engines of the process.
+ */
+class RenderCache {
+    private static final String TAG = Constants.TAG + RenderCache.class.getSimpleName();
+    static final int DIM_COLOR = 0x88000000;
+
+    // The number of bytes used by the render caches of all the engines.
+    private static long sTotalSizeBytes;
+
+    // Access-ordered by image id: the first entry is the least recently used one.
+    private final Map<String, Entry> mScaledBitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    private final long mMaxSizeBytes;
+    private long mSizeBytes;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mGrayscalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mDstRect = new Rect();
+
+    private int mViewWidth;
+    private int mViewHeight;
+    private boolean mIsGrayscale;
+    private boolean mIsImageDimmed;
+    private int mBackgroundColor;
+
+    RenderCache(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0);
+        mGrayscalePaint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+    }
+
+    /**
+     * @param imageId the id of the image in the theme.
+     * @param src     the area of the bitmap which contains the image, or null for the whole bitmap.
+     * @return the given image, scaled to fit in the view and with the settings applied, or null
+     * if it doesn't fit in the cache.
+     */
+    synchronized Bitmap getScaledBitmap(NounoursSettings settings, String imageId, Bitmap bitmap, Rect src,
+                                        int viewWidth, int viewHeight) {
+        if (viewWidth <= 0 || viewHeight <= 0) return null;
+        applySettings(settings, viewWidth, viewHeight);
+
+        int generationId = BitmapCompat.getGenerationId(bitmap);
+        Entry entry = mScaledBitmaps.get(imageId);
+        if (entry != null && entry.isScaledFrom(bitmap, generationId, src)) return entry.scaledBitmap;
+
+        int srcWidth = src == null ? bitmap.getWidth() : src.width();
+        int srcHeight = src == null ? bitmap.getHeight() : src.height();
+        float scale = Math.min((float) viewWidth / srcWidth, (float) viewHeight / srcHeight);
+        int scaledWidth = Math.max(1, Math.round(srcWidth * scale));
+        int scaledHeight = Math.max(1, Math.round(srcHeight * scale));
+        // An image without transparency can't become transparent once it's scaled and dimmed.
+        Bitmap.Config config = bitmap.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        long size = (long) scaledWidth * scaledHeight * (config == Bitmap.Config.ARGB_8888 ? 4 : 2);
+        if (size > mMaxSizeBytes) return null;
+
+        // The image was decoded again since we scaled it: its scaled image is out of date.
+        Bitmap scaledBitmap = null;
+        if (entry != null) {
+            mScaledBitmaps.remove(imageId);
+            removeSize(BitmapCompat.getByteCount(entry.scaledBitmap));
+            if (isReusable(entry.scaledBitmap, scaledWidth, scaledHeight, config)) scaledBitmap = entry.scaledBitmap;
+        }
+
+        // Make room for the new image.  Most images of a theme have the same size, so we can
+        // usually draw the new image into the memory of an image we evict.  We only evict our
+        // own images: the other engines make room when they draw.
+        Iterator<Entry> iterator = mScaledBitmaps.values().iterator();
+        while (getTotalSize() + size > mMaxSizeBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            removeSize(BitmapCompat.getByteCount(eldest.scaledBitmap));
+            if (scaledBitmap == null && isReusable(eldest.scaledBitmap, scaledWidth, scaledHeight, config)) {
+                scaledBitmap = eldest.scaledBitmap;
+            }
+        }
+        if (scaledBitmap == null && getTotalSize() + size > mMaxSizeBytes) return null;
+
+        if (scaledBitmap == null) {
+            try {
+                scaledBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, config);
+            } catch (OutOfMemoryError e) {
+                Log.v(TAG, "Couldn't create a " + scaledWidth + "x" + scaledHeight + " image", e);
+                return null;
+            }
+        } else {
+            scaledBitmap.eraseColor(Color.TRANSPARENT);
+        }
+
+        Canvas canvas = new Canvas(scaledBitmap);
+        mDstRect.set(0, 0, scaledWidth, scaledHeight);
+        canvas.drawBitmap(bitmap, src, mDstRect, mIsGrayscale ? mGrayscalePaint : mPaint);
+        // Only dim the image itself: the background is dimmed separately.
+        if (mIsImageDimmed) canvas.drawColor(DIM_COLOR, PorterDuff.Mode.SRC_ATOP);
+
+        mScaledBitmaps.put(imageId, new Entry(scaledBitmap, bitmap, generationId, src));
+        addSize(BitmapCompat.getByteCount(scaledBitmap));
+        return scaledBitmap;
+    }
+
+    /**
+     * @return the color to fill the rest of the view with, with the settings applied.
+     * Only valid after a call to {@link #getScaledBitmap(NounoursSettings, String, Bitmap, Rect, int, int)}
+     */
+    synchronized int getBackgroundColor() {
+        return mBackgroundColor;
+    }
+
+    synchronized void clear() {
+        mScaledBitmaps.clear();
+        removeSize(mSizeBytes);
+    }
+
+    /**
+     * Forget the images we scaled, except the given one.
+     *
+     * @param imageId the image to keep, or null to keep none.
+     */
+    synchronized void retainOnly(String imageId) {
+        Iterator<Map.Entry<String, Entry>> iterator = mScaledBitmaps.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().equals(imageId)) continue;
+            iterator.remove();
+            removeSize(BitmapCompat.getByteCount(entry.getValue().scaledBitmap));
+        }
+    }
+
+    private void addSize(long sizeBytes) {
+        mSizeBytes += sizeBytes;
+        synchronized (RenderCache.class) {
+            sTotalSizeBytes += sizeBytes;
+        }
+    }
+
+    private void removeSize(long sizeBytes) {
+        addSize(-sizeBytes);
+    }
+
+    private static synchronized long getTotalSize() {
+        return sTotalSizeBytes;
+    }
+
+    private void applySettings(NounoursSettings settings, int viewWidth, int viewHeight) {
+        boolean isGrayscale = settings.isGrayscale();
+        boolean isImageDimmed = settings.isImageDimmed();
+        int backgroundColor = isGrayscale ? 0xff000000 : settings.getBackgroundColor();
+        if (isImageDimmed) backgroundColor = dim(backgroundColor);
+        if (viewWidth != mViewWidth || viewHeight != mViewHeight
+                || isGrayscale != mIsGrayscale
+                || isImageDimmed != mIsImageDimmed
+                || backgroundColor != mBackgroundColor) {
+            Log.v(TAG, "Surface size or settings changed: clearing the cache");
+            clear();
+            mViewWidth = viewWidth;
+            mViewHeight = viewHeight;
+            mIsGrayscale = isGrayscale;
+            mIsImageDimmed = isImageDimmed;
+            mBackgroundColor = backgroundColor;
+        }
+    }
+
+    private static boolean isReusable(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+    }
+
+    /**
+     * @return the given color, with {@link #DIM_COLOR} drawn over it.
+     */
+    static int dim(int color) {
+        int dimAlpha = Color.alpha(DIM_COLOR);
+        int remaining = 255 - dimAlpha;
+        return Color.argb(dimAlpha + Color.alpha(color) * remaining / 255,
+                Color.red(color) * remaining / 255,
+                Color.green(color) * remaining / 255,
+                Color.blue(color) * remaining / 255);
+    }
+
+    private static class Entry {
+        private final Bitmap scaledBitmap;
+        // The bitmap we scaled, and the generation of its pixels when we scaled it.
+        private final WeakReference<Bitmap> source;
+        private final int generationId;
+        private final int left;
+        private final int top;
+        private final int right;
+        private final int bottom;
+
+        Entry(Bitmap scaledBitmap, Bitmap source, int generationId, Rect src) {
+            this.scaledBitmap = scaledBitmap;
+            this.source = new WeakReference<>(source);
+            this.generationId = generationId;
+            if (src == null) {
+                left = 0;
+                top = 0;
+                right = source.getWidth();
+                bottom = source.getHeight();
+            } else {
+                left = src.left;
+                top = src.top;
+                right = src.right;
+                bottom = src.bottom;
+            }
+        }
+
+        /**
+         * @return true if the scaled image was drawn from the given area of the given pixels.
+         */
+        boolean isScaledFrom(Bitmap bitmap, int generationId, Rect src) {
+            if (source.get() != bitmap || this.generationId != generationId) return false;
+            if (src == null) {
+                return left == 0 && top == 0 && right == bitmap.getWidth() && bottom == bitmap.getHeight();
+            }
+            return left == src.left && top == src.top && right == src.right && bottom == src.bottom;
+        }
+    }
+}
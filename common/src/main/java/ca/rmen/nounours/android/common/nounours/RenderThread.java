@@ -0,0 +1,105 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.rmen.nounours.android.common.compat.ChoreographerCompat;
+import ca.rmen.nounours.data.Image;
+
+/**
+ * Draws the frames of a surface on its own thread, when the display is ready for a new frame.
+ * The other threads only publish the image to display.  If several images are published
+ * between two frames, only the last one is drawn.
+ */
+class RenderThread {
+
+    interface FrameRenderer {
+        /**
+         * Called on the render thread, to draw the given image on the surface.
+         */
+        void renderFrame(Image image);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final FrameRenderer mFrameRenderer;
+    private final AtomicReference<Image> mPendingImage = new AtomicReference<>();
+    private final AtomicBoolean mIsFrameRequested = new AtomicBoolean();
+    // Once set, nothing is posted to the thread any more.
+    private volatile boolean mIsQuit;
+    // Only used on the render thread.
+    private ChoreographerCompat mChoreographer;
+
+    RenderThread(String name, FrameRenderer frameRenderer) {
+        mFrameRenderer = frameRenderer;
+        mThread = new HandlerThread(name, Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Draw the given image on the next frame.  May be called from any thread.
+     */
+    void publish(Image image) {
+        if (mIsQuit) return;
+        mPendingImage.set(image);
+        if (mIsFrameRequested.compareAndSet(false, true)) mHandler.post(mRequestFrame);
+    }
+
+    /**
+     * Run the given task on the render thread.  May be called from any thread.
+     */
+    void post(Runnable task) {
+        if (!mIsQuit) mHandler.post(task);
+    }
+
+    /**
+     * Stop drawing frames.  The images published and the tasks posted after this are ignored.
+     */
+    void quit() {
+        mIsQuit = true;
+        mHandler.removeCallbacks(mRequestFrame);
+        mThread.quit();
+    }
+
+    private final Runnable mRequestFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mChoreographer == null) mChoreographer = new ChoreographerCompat(mFrameCallback);
+            mChoreographer.postFrameCallback();
+        }
+    };
+
+    private final ChoreographerCompat.FrameCallback mFrameCallback = new ChoreographerCompat.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Images published from now on will need another frame.
+            mIsFrameRequested.set(false);
+            Image image = mPendingImage.getAndSet(null);
+            if (image != null) mFrameRenderer.renderFrame(image);
+        }
+    };
+}
@@ -0,0 +1,181 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.common.nounours;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.rmen.nounours.android.common.Constants;
+
+/**
+ * Reads the theme files which the build compiled into a single theme.bundle asset, in the
+ * directory of the theme (see gradle/themebundles.gradle for the format).
+ *
+ * The bundle is memory-mapped the first time a file of its directory is opened, and its files are
+ * then read straight from the mapping.  This replaces opening, and possibly inflating, one asset
+ * per file.
+ *
+ * If a directory has no bundle, or the bundle doesn't contain the file, the asset is opened
+ * normally.  The build leaves the CSV files of the themes out of the apk, so they can only be read
+ * from their bundle.
+ */
+public final class ThemeBundle {
+    private static final String TAG = Constants.TAG + ThemeBundle.class.getSimpleName();
+    private static final int MAGIC = 0x4e4e5242;
+    private static final int VERSION = 1;
+    private static final String BUNDLE_FILE_NAME = "theme.bundle";
+
+    // Key: asset directory. Value: its bundle, or null if it doesn't have a usable bundle.
+    private static final Map<String, ThemeBundle> sBundles = new HashMap<>();
+
+    private final ByteBuffer mBuffer;
+    // Key: file name. Value: offset and length of the file in the bundle.
+    private final Map<String, int[]> mEntries = new HashMap<>();
+
+    private ThemeBundle(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.getInt() != MAGIC) throw new IOException("Not a theme bundle");
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException("Unsupported theme bundle version " + version);
+        int entryCount = buffer.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            int offset = buffer.getInt();
+            int length = buffer.getInt();
+            if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+                throw new IOException("Invalid theme bundle entry at " + offset + ", length " + length);
+            }
+            mEntries.put(new String(name, "UTF-8"), new int[]{offset, length});
+        }
+    }
+
+    /**
+     * Open the given asset, from its directory's bundle if possible.  May be called from any thread.
+     *
+     * @param assetPath the path of the asset, for example themes/5000/image.csv
+     */
+    public static InputStream openAsset(Context context, String assetPath) throws IOException {
+        int lastSlash = assetPath.lastIndexOf('/');
+        if (lastSlash > 0) {
+            ThemeBundle themeBundle = getThemeBundle(context, assetPath.substring(0, lastSlash));
+            if (themeBundle != null) {
+                InputStream is = themeBundle.open(assetPath.substring(lastSlash + 1));
+                if (is != null) return is;
+            }
+        }
+        return context.getAssets().open(assetPath);
+    }
+
+    private static synchronized ThemeBundle getThemeBundle(Context context, String directory) {
+        if (sBundles.containsKey(directory)) return sBundles.get(directory);
+        ThemeBundle themeBundle = load(context, directory + "/" + BUNDLE_FILE_NAME);
+        sBundles.put(directory, themeBundle);
+        return themeBundle;
+    }
+
+    private static ThemeBundle load(Context context, String bundlePath) {
+        AssetFileDescriptor afd;
+        try {
+            // Fails if the bundle doesn't exist, or if it was compressed in the apk.
+            afd = context.getAssets().openFd(bundlePath);
+        } catch (IOException e) {
+            Log.v(TAG, "No theme bundle " + bundlePath + ": " + e.getMessage());
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = afd.createInputStream();
+            // The mapping remains valid after the file is closed.
+            ByteBuffer buffer = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            Log.v(TAG, "Mapped theme bundle " + bundlePath);
+            return new ThemeBundle(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read theme bundle " + bundlePath + ": " + e.getMessage(), e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated theme bundle " + bundlePath, e);
+            return null;
+        } finally {
+            try {
+                if (fis != null) fis.close();
+                afd.close();
+            } catch (IOException e) {
+                Log.v(TAG, "Couldn't close theme bundle " + bundlePath + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return a stream to read the given file from the bundle, or null if the bundle doesn't contain it.
+     */
+    private InputStream open(String fileName) {
+        int[] entry = mEntries.get(fileName);
+        if (entry == null) return null;
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(entry[0]);
+        buffer.limit(entry[0] + entry[1]);
+        return new ByteBufferInputStream(buffer.slice());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!mBuffer.hasRemaining()) return -1;
+            return mBuffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.rmen.nounours.io.CSVReader;
+import ca.rmen.nounours.io.NounoursReader;
+
+/**
+ * Reads the CSV file which lists the images the user can reach from a given image by
+ * moving one of its features.  We only need the image ids, to decide in which order to load
+ * the images of a theme, and which images follow each other on the screen.
+ */
+class AdjacentImageReader extends NounoursReader {
+
+    private static final String COL_IMAGE_ID = "ImageId";
+    private static final String COL_ADJACENT_IMAGE_ID = "AdjacentImageId";
+
+    private final Map<String, Set<String>> mAdjacentImageIds = new HashMap<>();
+
+    /**
+     * Immediately reads the CSV content.  Required columns are: <code>
+     * - ImageId: String. The id of the image the user starts from.
+     * - AdjacentImageId: String. The id of an image the user can move to from ImageId.
+     * </code>
+     *
+     * @throws IOException
+     */
+    public AdjacentImageReader(InputStream is) throws IOException {
+        super(is);
+        load();
+    }
+
+    @Override
+    protected void readLine(CSVReader reader) {
+        String imageId = reader.getValue(COL_IMAGE_ID);
+        String adjacentImageId = reader.getValue(COL_ADJACENT_IMAGE_ID);
+        Set<String> adjacentImageIds = mAdjacentImageIds.get(imageId);
+        if (adjacentImageIds == null) {
+            // Keep the order of the file.
+            adjacentImageIds = new LinkedHashSet<>();
+            mAdjacentImageIds.put(imageId, adjacentImageIds);
+        }
+        adjacentImageIds.add(adjacentImageId);
+    }
+
+    /**
+     * @return the ids of the images which have adjacent images.
+     */
+    public Set<String> getImageIds() {
+        return Collections.unmodifiableSet(mAdjacentImageIds.keySet());
+    }
+
+    /**
+     * @return the ids of the images adjacent to the given image, in the order of the CSV file.
+     */
+    public Set<String> getAdjacentImageIds(String imageId) {
+        Set<String> adjacentImageIds = mAdjacentImageIds.get(imageId);
+        if (adjacentImageIds == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(adjacentImageIds);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
+
+/**
+ * Keeps bitmaps which were never displayed, so their memory can be reused to decode other images,
+ * instead of allocating new memory every time.  The bitmaps which may have been displayed are
+ * never pooled: another engine's render thread may still be drawing them.
+ * Shared by all the image caches of the process.
+ */
+final class BitmapPool {
+    private static final BitmapPool INSTANCE = new BitmapPool(MemoryBudget.getBitmapPoolBytes());
+
+    // Oldest first. We drop the oldest bitmaps when the pool is full.
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+    private final long mMaxSizeBytes;
+    private long mSizeBytes;
+
+    static BitmapPool getInstance() {
+        return INSTANCE;
+    }
+
+    private BitmapPool(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Give a bitmap we no longer need to the pool.  The caller must not use the bitmap anymore.
+     *
+     * @return true if the bitmap was added to the pool, false if it can't be reused.
+     */
+    synchronized boolean put(Bitmap bitmap) {
+        if (!BitmapCompat.isBitmapReuseSupported() || !bitmap.isMutable() || bitmap.isRecycled()) return false;
+        int size = BitmapCompat.getAllocationByteCount(bitmap);
+        if (size > mMaxSizeBytes) return false;
+        for (Bitmap pooledBitmap : mBitmaps) {
+            if (pooledBitmap == bitmap) return true;
+        }
+        mBitmaps.add(bitmap);
+        mSizeBytes += size;
+        while (mSizeBytes > mMaxSizeBytes) {
+            // We don't recycle it: the garbage collector will reclaim it.
+            Bitmap oldest = mBitmaps.removeFirst();
+            mSizeBytes -= BitmapCompat.getAllocationByteCount(oldest);
+        }
+        return true;
+    }
+
+    /**
+     * @param width      the width of the decoded image, after subsampling.
+     * @param height     the height of the decoded image, after subsampling.
+     * @param config     the config of the decoded image.
+     * @param sampleSize the subsampling used to decode the image.
+     * @return a bitmap which can be used to decode the image, or null if we have none.
+     * The bitmap is removed from the pool.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize) {
+        if (!BitmapCompat.isBitmapReuseSupported()) return null;
+        boolean isFlexible = BitmapCompat.isFlexibleBitmapReuseSupported();
+        if (!isFlexible && sampleSize != 1) return null;
+
+        Bitmap bestBitmap = null;
+        int bestSize = Integer.MAX_VALUE;
+        int requiredSize = width * height * getBytesPerPixel(config);
+        for (Bitmap bitmap : mBitmaps) {
+            if (bitmap.getConfig() != config) continue;
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                bestBitmap = bitmap;
+                break;
+            }
+            if (isFlexible) {
+                // Any bitmap big enough will do, but we don't want to waste a huge bitmap on a small image.
+                int size = BitmapCompat.getAllocationByteCount(bitmap);
+                if (size >= requiredSize && size <= 2 * requiredSize && size < bestSize) {
+                    bestBitmap = bitmap;
+                    bestSize = size;
+                }
+            }
+        }
+        if (bestBitmap != null) remove(bestBitmap);
+        return bestBitmap;
+    }
+
+    /**
+     * Let go of all the bitmaps, so the garbage collector can reclaim them.
+     */
+    synchronized void clear() {
+        mBitmaps.clear();
+        mSizeBytes = 0;
+    }
+
+    private void remove(Bitmap bitmap) {
+        for (Iterator<Bitmap> iterator = mBitmaps.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == bitmap) {
+                iterator.remove();
+                mSizeBytes -= BitmapCompat.getAllocationByteCount(bitmap);
+                return;
+            }
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) return 4;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        return 2;
+    }
+}
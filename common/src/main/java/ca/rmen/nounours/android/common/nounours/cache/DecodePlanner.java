@@ -0,0 +1,103 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.Collection;
+
+import ca.rmen.nounours.android.common.util.BitmapUtil;
+
+/**
+ * Chooses how to decode the images of a theme before we decode any of them, so that the images
+ * we keep in memory, plus the images we're decoding, fit in the heap next to the bitmaps of the
+ * renderers and of the bitmap pool.
+ * <p/>
+ * Images are normally decoded with the largest subsampling which keeps all the pixels we display.
+ * If that doesn't fit, we downsample them further, by a power of two: see {@link #getSampleSize(BitmapFactory.Options, int, int, int)}
+ * and {@link #getConfig(BitmapFactory.Options, int, int, int)}.
+ */
+final class DecodePlanner {
+    static final int MAX_DOWNSAMPLING = 8;
+
+    private DecodePlanner() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param heapLimitBytes   the number of bytes our process may use on the heap.
+     * @param imageBytesInUse  the number of bytes used by the images we can replace: the images
+     *                         in the cache.
+     * @return the number of bytes the images of the theme may use.
+     */
+    static long getAvailableBytes(long heapLimitBytes, long imageBytesInUse) {
+        Runtime runtime = Runtime.getRuntime();
+        long otherBytes = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - imageBytesInUse);
+        // The renderers and the bitmap pool may fill their budgets.  What they use now is already
+        // in otherBytes: reserving their whole budget also leaves room for the rest of the app to grow.
+        long reservedBytes = MemoryBudget.getRenderCacheBytes() + MemoryBudget.getBitmapPoolBytes();
+        return Math.max(0, heapLimitBytes - otherBytes - reservedBytes);
+    }
+
+    /**
+     * @param availableBytes    the number of bytes the images may use: see {@link #getAvailableBytes(long, long)}.
+     * @param maxCacheSizeBytes the maximum size of the image cache.  The cache doesn't need to hold the whole theme.
+     * @param bounds            the bounds of all the images of the theme.
+     * @return the smallest downsampling factor which fits the images in memory, at most {@link #MAX_DOWNSAMPLING}.
+     */
+    static int plan(long availableBytes, long maxCacheSizeBytes, Collection<BitmapFactory.Options> bounds,
+                    int targetWidth, int targetHeight) {
+        int downsampling = 1;
+        while (downsampling < MAX_DOWNSAMPLING) {
+            long themeBytes = 0;
+            long largestImageBytes = 0;
+            for (BitmapFactory.Options imageBounds : bounds) {
+                long imageBytes = getByteCount(imageBounds, targetWidth, targetHeight, downsampling);
+                themeBytes += imageBytes;
+                largestImageBytes = Math.max(largestImageBytes, imageBytes);
+            }
+            // We need room for the images we keep, and for the ones we're decoding: one per decode thread.
+            if (Math.min(themeBytes, maxCacheSizeBytes) + largestImageBytes * ImageCache.DECODE_THREAD_COUNT
+                    <= availableBytes) break;
+            downsampling *= 2;
+        }
+        return downsampling;
+    }
+
+    static int getSampleSize(BitmapFactory.Options bounds, int targetWidth, int targetHeight, int downsampling) {
+        return downsampling * BitmapUtil.getSampleSize(bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+    }
+
+    /**
+     * When we downsample to save memory, we accept the banding of RGB_565 for opaque images.
+     */
+    static Bitmap.Config getConfig(BitmapFactory.Options bounds, int targetWidth, int targetHeight, int downsampling) {
+        if (downsampling > 1 && BitmapUtil.isOpaque(bounds)) return Bitmap.Config.RGB_565;
+        return BitmapUtil.getConfig(bounds, targetWidth, targetHeight);
+    }
+
+    private static long getByteCount(BitmapFactory.Options bounds, int targetWidth, int targetHeight, int downsampling) {
+        int sampleSize = getSampleSize(bounds, targetWidth, targetHeight, downsampling);
+        long pixels = (long) BitmapUtil.getDecodedSize(bounds.outWidth, sampleSize)
+                * BitmapUtil.getDecodedSize(bounds.outHeight, sampleSize);
+        return pixels * (getConfig(bounds, targetWidth, targetHeight, downsampling) == Bitmap.Config.ARGB_8888 ? 4 : 2);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
+import ca.rmen.nounours.data.Image;
+
+/**
+ * Keeps decoded images on the disk, so that the next time we need them for a surface of the same
+ * size, we can read their pixels instead of decoding the jpeg or png again.
+ *
+ * Each file contains a header followed by the raw pixels of the bitmap, and is read with a
+ * memory-mapped buffer.  A file is ignored if it was written by another version or another
+ * install of the app: the images are all in the apk, so they can't change otherwise.
+ * Shared by all the image caches of the process.
+ */
+final class DiskBitmapCache {
+    private static final String TAG = Constants.TAG + DiskBitmapCache.class.getSimpleName();
+
+    private static final String DIR_NAME = "bitmaps";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    private static final long MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x4e4f554e;
+    private static final int FORMAT_VERSION = 2;
+    // magic, format version, app version code, apk timestamp, width, height, config, has alpha
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    private static DiskBitmapCache sInstance;
+
+    private final File mDir;
+    private final int mVersionCode;
+    private final long mApkTimestamp;
+    // The total size of our files.  -1 until we've looked at the disk.
+    private long mSizeBytes = -1;
+    // The temp files being written.  The other temp files were left by a write which was interrupted.
+    private final Set<String> mTempFileNames = new HashSet<>();
+
+    static synchronized DiskBitmapCache getInstance(Context context) {
+        if (sInstance == null) sInstance = new DiskBitmapCache(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private DiskBitmapCache(Context context) {
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) Log.v(TAG, "Couldn't create " + mDir);
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.v(TAG, "Couldn't read our version code", e);
+        }
+        mVersionCode = versionCode;
+        // Changes when the apk is reinstalled, even if the version code doesn't.
+        mApkTimestamp = new File(context.getPackageCodePath()).lastModified();
+    }
+
+    /**
+     * @param width    the width we expect the decoded image to have.
+     * @param height   the height we expect the decoded image to have.
+     * @param config   the config we ask the decoder to use.
+     * @param inBitmap an unused bitmap to read the image into, or null.
+     * @return the decoded image, or null if we don't have it on the disk.
+     */
+    Bitmap get(Image image, int width, int height, Bitmap.Config config, Bitmap inBitmap) {
+        File file = getFile(image, width, height, config);
+        if (!file.exists()) return null;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) return delete(file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getInt() != mVersionCode
+                    || buffer.getLong() != mApkTimestamp) {
+                Log.v(TAG, file + " is out of date");
+                return delete(file);
+            }
+            int bitmapWidth = buffer.getInt();
+            int bitmapHeight = buffer.getInt();
+            int configOrdinal = buffer.getInt();
+            boolean hasAlpha = buffer.getInt() != 0;
+            Bitmap.Config[] configs = Bitmap.Config.values();
+            if (configOrdinal < 0 || configOrdinal >= configs.length) return delete(file);
+            // The decoder doesn't always use the config we ask for.
+            Bitmap.Config bitmapConfig = configs[configOrdinal];
+
+            Bitmap bitmap = inBitmap != null && BitmapCompat.reconfigure(inBitmap, bitmapWidth, bitmapHeight, bitmapConfig) ?
+                    inBitmap : Bitmap.createBitmap(bitmapWidth, bitmapHeight, bitmapConfig);
+            if (buffer.remaining() != BitmapCompat.getByteCount(bitmap)) {
+                if (bitmap != inBitmap) bitmap.recycle();
+                return delete(file);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            if (!hasAlpha) BitmapCompat.setHasAlpha(bitmap, false);
+            // The least recently used files are deleted first.
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            Log.v(TAG, "Read " + file);
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.v(TAG, "Couldn't read " + file + ": " + e.getMessage(), e);
+            return null;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Write the given decoded image to the disk.
+     *
+     * @param width  the width we expected the decoded image to have.
+     * @param height the height we expected the decoded image to have.
+     * @param config the config we asked the decoder to use.
+     */
+    void put(Image image, int width, int height, Bitmap.Config config, Bitmap bitmap) {
+        File file = getFile(image, width, height, config);
+        // Several threads may write the same image: each one writes its own file, and the last one wins.
+        File tempFile = new File(mDir, file.getName() + "." + Thread.currentThread().getId() + TEMP_FILE_EXTENSION);
+        long size = HEADER_SIZE + BitmapCompat.getByteCount(bitmap);
+        boolean isWritten = false;
+        RandomAccessFile raf = null;
+        synchronized (this) {
+            mTempFileNames.add(tempFile.getName());
+        }
+        try {
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt(mVersionCode)
+                    .putLong(mApkTimestamp)
+                    .putInt(bitmap.getWidth())
+                    .putInt(bitmap.getHeight())
+                    .putInt(bitmap.getConfig().ordinal())
+                    .putInt(bitmap.hasAlpha() ? 1 : 0);
+            bitmap.copyPixelsToBuffer(buffer);
+            isWritten = true;
+        } catch (IOException | RuntimeException e) {
+            Log.v(TAG, "Couldn't write " + tempFile + ": " + e.getMessage(), e);
+        } finally {
+            close(raf);
+        }
+        boolean isRenamed = isWritten && tempFile.renameTo(file);
+        if (!isRenamed) delete(tempFile);
+        synchronized (this) {
+            mTempFileNames.remove(tempFile.getName());
+        }
+        if (!isRenamed) return;
+        Log.v(TAG, "Wrote " + file);
+        trim(size);
+    }
+
+    private File getFile(Image image, int width, int height, Bitmap.Config config) {
+        String name = image.getFilename().replaceAll("[^A-Za-z0-9._-]", "_")
+                + "-" + width + "x" + height + "-" + config.name();
+        return new File(mDir, name);
+    }
+
+    /**
+     * Delete the least recently used files until we're within our budget.
+     * The temp files left by interrupted writes are deleted first.
+     */
+    private synchronized void trim(long addedBytes) {
+        File[] files = null;
+        if (mSizeBytes < 0) {
+            // The first time, this also cleans up after a previous process which was killed while writing.
+            files = listFiles();
+            mSizeBytes = getSize(files);
+        } else {
+            mSizeBytes += addedBytes;
+        }
+        if (mSizeBytes <= MAX_SIZE_BYTES) return;
+
+        if (files == null) files = listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long lastModified1 = file1.lastModified();
+                long lastModified2 = file2.lastModified();
+                return lastModified1 < lastModified2 ? -1 : (lastModified1 == lastModified2 ? 0 : 1);
+            }
+        });
+        mSizeBytes = getSize(files);
+        for (File file : files) {
+            if (mSizeBytes <= MAX_SIZE_BYTES) break;
+            // Another thread may be writing this one.
+            if (file.getName().endsWith(TEMP_FILE_EXTENSION)) continue;
+            long length = file.length();
+            if (file.delete()) mSizeBytes -= length;
+        }
+        Log.v(TAG, "Trimmed the disk cache to " + mSizeBytes + " bytes");
+    }
+
+    /**
+     * @return our files, once the temp files which aren't being written are deleted.  The temp
+     * files being written are still included: they count toward our budget.
+     */
+    private File[] listFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) return null;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_EXTENSION) && !mTempFileNames.contains(file.getName())) {
+                Log.v(TAG, "Deleting " + file + ": its write was interrupted");
+                delete(file);
+            }
+        }
+        return files;
+    }
+
+    private static long getSize(File[] files) {
+        long size = 0;
+        if (files != null) {
+            for (File file : files) size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * @return null, so that the read methods can delete a bad file and return in one statement.
+     */
+    private static Bitmap delete(File file) {
+        if (!file.delete()) Log.v(TAG, "Couldn't delete " + file);
+        return null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.v(TAG, "Couldn't close " + closeable, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
+
+/**
+ * For pairs of images which can follow each other on the screen, the bounding box of the pixels
+ * which differ between them.  When we go from one image to the other, only this area of the
+ * surface needs to be drawn again.
+ */
+final class FrameDiffs {
+    private static final String TAG = Constants.TAG + FrameDiffs.class.getSimpleName();
+
+    // fromImageId -> toImageId -> diff
+    private final Map<String, Map<String, Diff>> mDiffs = new HashMap<>();
+
+    /**
+     * @param width   the width of the images, as we're about to draw them.
+     * @param height  the height of the images, as we're about to draw them.
+     * @param outDiff set to the area which differs between the images, relative to the top-left
+     *                corner of the image.  Empty if the images are identical.
+     * @return false if we don't know the difference between these images.
+     */
+    synchronized boolean get(String fromImageId, String toImageId, int width, int height, Rect outDiff) {
+        Map<String, Diff> diffs = mDiffs.get(fromImageId);
+        if (diffs == null) return false;
+        Diff diff = diffs.get(toImageId);
+        // The images may have been decoded again, at another size, since we compared them.
+        if (diff == null || diff.width != width || diff.height != height) return false;
+        outDiff.set(diff.rect);
+        return true;
+    }
+
+    /**
+     * Compare the images of the given transitions.  Only images which are in the cache are
+     * compared: the others are left out.
+     *
+     * @param transitions for each image id, the ids of the images which may be displayed right after it.
+     */
+    void compute(ImageCache imageCache, Map<String, Set<String>> transitions) {
+        Log.v(TAG, "compute");
+        Rect fromSrc = new Rect();
+        Rect toSrc = new Rect();
+        int[] fromRow = new int[0];
+        int[] toRow = new int[0];
+        int count = 0;
+        for (Map.Entry<String, Set<String>> entry : transitions.entrySet()) {
+            String fromImageId = entry.getKey();
+            for (String toImageId : entry.getValue()) {
+                // The difference is the same both ways.
+                if (hasDiff(fromImageId, toImageId)) continue;
+                Bitmap from = imageCache.get(fromImageId, fromSrc);
+                Bitmap to = imageCache.get(toImageId, toSrc);
+                if (from == null || to == null) continue;
+                if (fromSrc.width() != toSrc.width() || fromSrc.height() != toSrc.height()) continue;
+                int fromGenerationId = BitmapCompat.getGenerationId(from);
+                int toGenerationId = BitmapCompat.getGenerationId(to);
+
+                if (fromRow.length < fromSrc.width()) {
+                    fromRow = new int[fromSrc.width()];
+                    toRow = new int[fromSrc.width()];
+                }
+                Rect rect = diff(from, fromSrc, to, toSrc, fromRow, toRow);
+
+                // If an image was evicted while we were reading it, its memory may have been
+                // reused for another image: we can't trust what we read.
+                if (!isStillCached(imageCache, fromImageId, from, fromGenerationId)
+                        || !isStillCached(imageCache, toImageId, to, toGenerationId)) {
+                    continue;
+                }
+                put(fromImageId, toImageId, new Diff(fromSrc.width(), fromSrc.height(), rect));
+                count++;
+            }
+        }
+        Log.v(TAG, "Compared " + count + " pairs of images");
+    }
+
+    private static boolean isStillCached(ImageCache imageCache, String imageId, Bitmap bitmap, int generationId) {
+        return imageCache.get(imageId, null) == bitmap && BitmapCompat.getGenerationId(bitmap) == generationId;
+    }
+
+    /**
+     * @return the bounding box of the pixels which differ, relative to the top-left corner of the images.
+     */
+    private static Rect diff(Bitmap from, Rect fromSrc, Bitmap to, Rect toSrc, int[] fromRow, int[] toRow) {
+        int width = fromSrc.width();
+        int height = fromSrc.height();
+        Rect rect = new Rect(width, height, 0, 0);
+        for (int y = 0; y < height; y++) {
+            from.getPixels(fromRow, 0, width, fromSrc.left, fromSrc.top + y, width, 1);
+            to.getPixels(toRow, 0, width, toSrc.left, toSrc.top + y, width, 1);
+            int left = 0;
+            while (left < width && fromRow[left] == toRow[left]) left++;
+            if (left == width) continue;
+            int right = width - 1;
+            while (fromRow[right] == toRow[right]) right--;
+            rect.left = Math.min(rect.left, left);
+            rect.right = Math.max(rect.right, right + 1);
+            rect.top = Math.min(rect.top, y);
+            rect.bottom = y + 1;
+        }
+        if (rect.right <= rect.left) rect.setEmpty();
+        return rect;
+    }
+
+    private synchronized boolean hasDiff(String fromImageId, String toImageId) {
+        Map<String, Diff> diffs = mDiffs.get(fromImageId);
+        return diffs != null && diffs.containsKey(toImageId);
+    }
+
+    private synchronized void put(String fromImageId, String toImageId, Diff diff) {
+        putOneWay(fromImageId, toImageId, diff);
+        putOneWay(toImageId, fromImageId, diff);
+    }
+
+    private void putOneWay(String fromImageId, String toImageId, Diff diff) {
+        Map<String, Diff> diffs = mDiffs.get(fromImageId);
+        if (diffs == null) {
+            diffs = new HashMap<>();
+            mDiffs.put(fromImageId, diffs);
+        }
+        diffs.put(toImageId, diff);
+    }
+
+    private static class Diff {
+        private final int width;
+        private final int height;
+        private final Rect rect;
+
+        Diff(int width, int height, Rect rect) {
+            this.width = width;
+            this.height = height;
+            this.rect = rect;
+        }
+    }
+}
@@ -20,23 +20,79 @@ package ca.rmen.nounours.android.common.nounours.cache;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Process;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.ActivityManagerCompat;
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
 import ca.rmen.nounours.data.Image;
 import ca.rmen.nounours.android.common.util.BitmapUtil;
 
+/**
+ * Keeps decoded images in memory, up to a maximum number of bytes.
+ * When the limit is reached, the least recently used images are evicted first.
+ */
 public class ImageCache {
 
 
     private static final String TAG = Constants.TAG + ImageCache.class.getSimpleName();
 
-    private final Map<String, Bitmap> mImageCache = new ConcurrentHashMap<>();
+    // Shared by all the caches in the process, so we never decode on more threads than we have cores.
+    static final int DECODE_THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService sDecodeExecutor;
+
+    // Access-ordered: iteration starts with the least recently used image.
+    private final Map<String, Bitmap> mImageCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long mMaxSizeBytes = Long.MAX_VALUE;
+    private long mSizeBytes;
+    // Incremented every time the cache is cleared, so background loads of a previous theme can be dropped.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // The size of the surface the images are decoded for.  0 if we don't know it yet.
+    private int mTargetWidth;
+    private int mTargetHeight;
+    // The bounds of the last image we decoded, used to tell if a new surface size changes how we decode.
+    private BitmapFactory.Options mLastBounds;
+    // In atlas mode, the images of the theme are packed into a few large bitmaps.
+    private boolean mIsAtlasEnabled;
+    private ThemeAtlas mAtlas;
+    // The generation for which we last tried to create an atlas.
+    private int mAtlasGeneration = -1;
+    // Under memory pressure, images are decoded at a fraction of their usual size.
+    private int mDownsampling = 1;
+    // The bounds of the images of the theme, read once by planDecode().
+    private final Map<String, BitmapFactory.Options> mBounds = new HashMap<>();
+    private long mHeapLimitBytes = Runtime.getRuntime().maxMemory();
+    // The downsampling we need for the theme to fit in the heap.
+    private int mPlannedDownsampling = 1;
+    // The number of times each image was pinned. Pinned images aren't evicted to make room for others.
+    private final Map<String, Integer> mPinCounts = new HashMap<>();
+    // The images we kept when the others were evicted to be decoded differently.  They're still
+    // drawn, but they're decoded again by the next background load.
+    private final Set<String> mStaleImageIds = new HashSet<>();
 
     public interface ImageCacheListener {
         void onImageLoaded(Image image, int progress, int total);
@@ -47,47 +103,308 @@ public class ImageCache {
     }
 
     /**
-     * Load the images into memory.
+     * Load the images into memory.  The images are decoded in parallel, but the listener is
+     * notified in the order of the given collection.
+     *
+     * @return false if any image couldn't be loaded. In that case the remaining decodes are cancelled.
      */
     public boolean cacheImages(Context context, Collection<Image> images, Handler uiHandler, final ImageCacheListener listener) {
         Log.v(TAG, "cacheImages");
+        ExecutorService executor = getDecodeExecutor();
+        List<Future<Bitmap>> futures = new ArrayList<>(images.size());
+        for (Image image : images) {
+            futures.add(executor.submit(new LoadImageTask(context, image)));
+        }
+
         int i = 0;
         final int max = images.size();
-        for (final Image image : images) {
-            Bitmap bitmap = loadImage(context, image);
-            if (bitmap == null)
-                return false;
-            i++;
-            final int progress = i;
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    listener.onImageLoaded(image, progress, max);
-                }
-            });
+        try {
+            for (final Image image : images) {
+                Bitmap bitmap = futures.get(i).get();
+                if (bitmap == null)
+                    return false;
+                i++;
+                final int progress = i;
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onImageLoaded(image, progress, max);
+                    }
+                });
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Log.v(TAG, "Interrupted while loading images", e);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Couldn't load image: " + e.getMessage(), e);
+            return false;
+        } finally {
+            // Only has an effect if we're bailing out early: don't start decoding the images we didn't get to.
+            for (Future<Bitmap> future : futures) {
+                future.cancel(false);
+            }
         }
-        return true;
     }
 
-    public void clearImageCache() {
-        Log.v(TAG, "clearImageCache");
+    /**
+     * Start loading the missing images among the given ones, in parallel.
+     *
+     * @return the decodes we started, to give to {@link #awaitImages(List, long)}.
+     */
+    List<Future<Bitmap>> loadImages(Context context, Collection<Image> images) {
+        List<Future<Bitmap>> futures = new ArrayList<>(images.size());
+        for (Image image : images) {
+            if (get(image.getId(), null) == null) {
+                futures.add(getDecodeExecutor().submit(new LoadImageTask(context, image)));
+            }
+        }
+        if (!futures.isEmpty()) Log.v(TAG, "loadImages: loading " + futures.size() + " images");
+        return futures;
+    }
+
+    /**
+     * Wait until the given decodes are done, or until the timeout expires.  The images which
+     * aren't loaded by then keep loading in the background.
+     *
+     * @return true if all the images are in memory.
+     */
+    static boolean awaitImages(List<Future<Bitmap>> futures, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            for (Future<Bitmap> future : futures) {
+                if (future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) == null) return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Log.v(TAG, "Interrupted while loading images", e);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Couldn't load image: " + e.getMessage(), e);
+            return false;
+        } catch (TimeoutException e) {
+            Log.v(TAG, "Timed out loading images");
+            return false;
+        }
+    }
+
+    /**
+     * Keep the given images in memory until they're unpinned, even if the cache goes over its
+     * maximum size.  They are still evicted by {@link #retainOnly(Collection)} and when the
+     * cache is cleared: memory pressure matters more than a smooth animation.  The pins outlive
+     * the eviction: the cache may be shared with other engines, which unpin their own images.
+     * Each call must be followed by a call to {@link #unpin(Collection)} with the same images.
+     * The images are also kept when the others are evicted to be decoded differently, until
+     * they're decoded again.
+     */
+    public synchronized void pin(Collection<Image> images) {
+        for (Image image : images) {
+            Integer pinCount = mPinCounts.get(image.getId());
+            mPinCounts.put(image.getId(), pinCount == null ? 1 : pinCount + 1);
+        }
+    }
 
-        for (Bitmap bitmap : mImageCache.values()) {
-            if (!bitmap.isRecycled()) bitmap.recycle();
+    /**
+     * Let the given images be evicted again.
+     */
+    public synchronized void unpin(Collection<Image> images) {
+        for (Image image : images) {
+            Integer pinCount = mPinCounts.get(image.getId());
+            if (pinCount == null) continue;
+            if (pinCount == 1) mPinCounts.remove(image.getId());
+            else mPinCounts.put(image.getId(), pinCount - 1);
         }
+        trimToSize();
+    }
+
+    /**
+     * Load the given images into memory, one by one, in a background thread.  The loading stops
+     * if the cache is cleared, or if it becomes full: we don't want to evict images which are
+     * in use, just to prefetch others.
+     */
+    public void cacheImagesInBackground(final Context context, final Collection<Image> images) {
+        cacheImagesInBackground(context, images, null);
+    }
+
+    /**
+     * @param onComplete run in the background thread once we're done loading images, unless the
+     *                   cache was cleared in the meantime.  May be null.
+     * @see #cacheImagesInBackground(Context, Collection)
+     */
+    public void cacheImagesInBackground(final Context context, final Collection<Image> images, final Runnable onComplete) {
+        Log.v(TAG, "cacheImagesInBackground: " + images.size() + " images");
+        final int generation = mGeneration.get();
+        getDecodeExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                // If the images were evicted for a new surface size, the atlas has to be planned again.
+                prepareAtlas(context, images, generation);
+                for (Image image : images) {
+                    if (!isBackgroundLoadAllowed(generation, image.getId())) {
+                        Log.v(TAG, "Stopping the background load");
+                        break;
+                    }
+                    if (isLoaded(image.getId())) continue;
+                    Log.v(TAG, "Loading " + image + " in the background");
+                    Bitmap bitmap = decodeImage(context, image);
+                    if (bitmap == null) break;
+                    putIfGeneration(generation, image.getId(), bitmap, null);
+                }
+                Log.v(TAG, "Background load complete");
+                if (onComplete != null && generation == mGeneration.get()) onComplete.run();
+            }
+        });
+    }
+
+    public synchronized void clearImageCache() {
+        Log.v(TAG, "clearImageCache");
+        mGeneration.incrementAndGet();
+
+        // Don't pool or recycle them: the render thread of the engine which released the theme
+        // may still be drawing the last image.  The garbage collector reclaims them.
+        mAtlas = null;
         mImageCache.clear();
-        System.gc();
+        mSizeBytes = 0;
+        mBounds.clear();
+        mPlannedDownsampling = 1;
+        mStaleImageIds.clear();
+    }
+
+    /**
+     * Read the size of the given images, without decoding them, and choose how to decode them
+     * so that they fit in the heap, given the size of the surface, the maximum size of the cache,
+     * and the memory the rest of the app is using.
+     * If this changes how the images we already have would be decoded, they are evicted.
+     */
+    public void planDecode(Context context, Collection<Image> images) {
+        Map<String, BitmapFactory.Options> bounds = new HashMap<>(images.size());
+        for (Image image : images) {
+            if (getBounds(image.getId()) != null) continue;
+            BitmapFactory.Options imageBounds = BitmapUtil.decodeBounds(context, image);
+            if (imageBounds != null) bounds.put(image.getId(), imageBounds);
+        }
+        long heapLimitBytes = ActivityManagerCompat.getHeapLimitBytes(context);
+        synchronized (this) {
+            mBounds.putAll(bounds);
+            mHeapLimitBytes = heapLimitBytes;
+            if (updatePlan()) evictAll();
+        }
+    }
+
+    /**
+     * In atlas mode, the images of a theme are packed into a few large bitmaps, which saves the
+     * overhead of one bitmap per image.  The atlas is planned by {@link #prepareAtlas(Context, Collection)},
+     * and holds all the images of the theme: it's only used if it fits in the maximum size
+     * of the cache.  Use {@link #getDrawableImage(Context, Image, Rect)} to find an image in the atlas.
+     */
+    public synchronized void setAtlasEnabled(boolean isAtlasEnabled) {
+        mIsAtlasEnabled = isAtlasEnabled;
+    }
+
+    /**
+     * In atlas mode, plan the atlas for the given images: all the images of the theme.
+     * The images are copied into the atlas as they're loaded.
+     */
+    public void prepareAtlas(Context context, Collection<Image> images) {
+        prepareAtlas(context, images, mGeneration.get());
+    }
+
+    /**
+     * Decode the images for a surface of the given size.  If this changes how the images we
+     * already have would be decoded, they are evicted, to be decoded again when needed.
+     *
+     * @return true if images were evicted.
+     */
+    public synchronized boolean setTargetSize(int width, int height) {
+        if (width == mTargetWidth && height == mTargetHeight) return false;
+        Log.v(TAG, "setTargetSize " + width + "x" + height);
+        boolean isDecodeChanged = mLastBounds != null
+                && (BitmapUtil.getSampleSize(mLastBounds.outWidth, mLastBounds.outHeight, mTargetWidth, mTargetHeight)
+                != BitmapUtil.getSampleSize(mLastBounds.outWidth, mLastBounds.outHeight, width, height)
+                || BitmapUtil.getConfig(mLastBounds, mTargetWidth, mTargetHeight)
+                != BitmapUtil.getConfig(mLastBounds, width, height));
+        mTargetWidth = width;
+        mTargetHeight = height;
+        boolean isPlanChanged = updatePlan();
+        return (isDecodeChanged || isPlanChanged) && evictAll();
+    }
 
+    /**
+     * Decode the images at 1/factor of the size we'd normally use, to save memory.  The images we
+     * already have are evicted, to be decoded again at the new size when needed.
+     *
+     * @param factor       a power of two. 1 to decode the images at their usual size.
+     * @param keptImageIds the images on the screen.  They're kept at their current size until
+     *                     they're decoded again by {@link #cacheImagesInBackground(Context, Collection)},
+     *                     so we don't have to decode them in the middle of a frame.
+     * @return true if images were evicted.
+     */
+    public synchronized boolean setDownsampling(int factor, Collection<String> keptImageIds) {
+        if (factor == mDownsampling) return false;
+        Log.v(TAG, "setDownsampling " + factor);
+        int previousDownsampling = getDownsampling();
+        mDownsampling = factor;
+        return getDownsampling() != previousDownsampling && evictAll(keptImageIds);
+    }
+
+    /**
+     * Evict all the images except the given ones, and stop loading images in the background.
+     * The evicted images are decoded again when they're needed.  The atlas holds the whole
+     * theme, so it's evicted too.
+     */
+    public synchronized void retainOnly(Collection<String> imageIds) {
+        Log.v(TAG, "retainOnly " + imageIds);
+        mGeneration.incrementAndGet();
+        if (mAtlas != null) {
+            mSizeBytes -= mAtlas.getByteCount();
+            mAtlas = null;
+        }
+        // Don't recycle or pool them: another engine may be drawing them.
+        for (Iterator<Map.Entry<String, Bitmap>> iterator = mImageCache.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Bitmap> entry = iterator.next();
+            if (!imageIds.contains(entry.getKey())) {
+                mSizeBytes -= BitmapCompat.getByteCount(entry.getValue());
+                mStaleImageIds.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes the decoded images may use.  If the cache is already
+     * bigger than this, the least recently used images are evicted right away.
+     */
+    public synchronized void setMaxSize(long maxSizeBytes) {
+        Log.v(TAG, "setMaxSize " + maxSizeBytes);
+        mMaxSizeBytes = maxSizeBytes;
+        trimToSize();
+        if (updatePlan()) evictAll();
     }
 
     /**
      * Find the Android image for the given nounours image.
+     * In atlas mode, this returns a copy of the image: prefer {@link #getDrawableImage(Context, Image, Rect)}.
      */
     public Bitmap getDrawableImage(Context context, final Image image) {
-        Bitmap res = mImageCache.get(image.getId());
+        Rect src = new Rect();
+        Bitmap res = getDrawableImage(context, image, src);
+        if (res == null || (src.width() == res.getWidth() && src.height() == res.getHeight())) return res;
+        return Bitmap.createBitmap(res, src.left, src.top, src.width(), src.height());
+    }
+
+    /**
+     * Find the Android image for the given nounours image.
+     *
+     * @param outSrc set to the area of the returned bitmap which contains the image: in atlas mode,
+     *               the bitmap contains other images too.
+     */
+    public Bitmap getDrawableImage(Context context, final Image image, Rect outSrc) {
+        Bitmap res = get(image.getId(), outSrc);
         if (res == null) {
             Log.v(TAG, "Loading drawable image " + image);
-            res = loadImage(context, image);
+            res = loadImage(context, image, outSrc);
         }
         return res;
     }
@@ -97,12 +414,288 @@ public class ImageCache {
      * Load an image from the disk into memory. Return the Drawable for the
      * image.
      */
-    private Bitmap loadImage(Context context, final Image image) {
+    private Bitmap loadImage(Context context, final Image image, Rect outSrc) {
         Log.v(TAG, "Loading " + image + " into memory");
-        Bitmap result = BitmapUtil.createBitmap(context, image);
-        if (result != null) mImageCache.put(image.getId(), result);
+        int generation = mGeneration.get();
+        Bitmap result = decodeImage(context, image);
+        if (result == null) return null;
+        return putIfGeneration(generation, image.getId(), result, outSrc);
+    }
+
+    private void prepareAtlas(Context context, Collection<Image> images, int generation) {
+        int targetWidth;
+        int targetHeight;
+        int downsampling;
+        long maxSizeBytes;
+        synchronized (this) {
+            if (!mIsAtlasEnabled || mAtlasGeneration == generation) return;
+            mAtlasGeneration = generation;
+            targetWidth = mTargetWidth;
+            targetHeight = mTargetHeight;
+            downsampling = getDownsampling();
+            maxSizeBytes = mMaxSizeBytes - mSizeBytes;
+        }
+        ThemeAtlas.Builder builder = new ThemeAtlas.Builder();
+        BitmapFactory.Options bounds = null;
+        for (Image image : images) {
+            bounds = getBounds(context, image);
+            if (bounds == null) continue;
+            int sampleSize = DecodePlanner.getSampleSize(bounds, targetWidth, targetHeight, downsampling);
+            builder.add(image.getId(),
+                    BitmapUtil.getDecodedSize(bounds.outWidth, sampleSize),
+                    BitmapUtil.getDecodedSize(bounds.outHeight, sampleSize),
+                    DecodePlanner.getConfig(bounds, targetWidth, targetHeight, downsampling));
+        }
+        ThemeAtlas atlas = builder.build(maxSizeBytes);
+        synchronized (this) {
+            if (bounds != null) mLastBounds = bounds;
+            if (atlas == null) {
+                Log.v(TAG, "Not using an atlas for these images");
+            } else if (generation == mGeneration.get() && mAtlas == null) {
+                mAtlas = atlas;
+                mSizeBytes += atlas.getByteCount();
+            } else {
+                for (Bitmap page : atlas.getPages()) page.recycle();
+            }
+        }
+    }
+
+    private Bitmap decodeImage(Context context, Image image) {
+        BitmapFactory.Options bounds = getBounds(context, image);
+        if (bounds == null) return null;
+        int targetWidth;
+        int targetHeight;
+        int downsampling;
+        synchronized (this) {
+            mLastBounds = bounds;
+            targetWidth = mTargetWidth;
+            targetHeight = mTargetHeight;
+            downsampling = getDownsampling();
+        }
+        int sampleSize = DecodePlanner.getSampleSize(bounds, targetWidth, targetHeight, downsampling);
+        Bitmap.Config config = DecodePlanner.getConfig(bounds, targetWidth, targetHeight, downsampling);
+        int width = BitmapUtil.getDecodedSize(bounds.outWidth, sampleSize);
+        int height = BitmapUtil.getDecodedSize(bounds.outHeight, sampleSize);
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        Bitmap inBitmap = bitmapPool.get(width, height, config, sampleSize);
+
+        // Reading the pixels we decoded in a previous session is faster than decoding them again.
+        DiskBitmapCache diskBitmapCache = DiskBitmapCache.getInstance(context);
+        Bitmap result = diskBitmapCache.get(image, width, height, config, inBitmap);
+        if (result == null) {
+            result = BitmapUtil.createBitmap(context, image, bounds, sampleSize, config, inBitmap);
+            // The downsampled images are only needed until the memory pressure is over.
+            if (result != null && downsampling == 1) diskBitmapCache.put(image, width, height, config, result);
+        }
+        // Give the bitmap back to the pool if we couldn't use it.
+        if (inBitmap != null && result != inBitmap) bitmapPool.put(inBitmap);
         return result;
     }
 
+    /**
+     * @return the bounds read by {@link #planDecode(Context, Collection)}, or read them now if
+     * the image wasn't planned.
+     */
+    private BitmapFactory.Options getBounds(Context context, Image image) {
+        BitmapFactory.Options bounds = getBounds(image.getId());
+        return bounds != null ? bounds : BitmapUtil.decodeBounds(context, image);
+    }
+
+    private synchronized BitmapFactory.Options getBounds(String imageId) {
+        return mBounds.get(imageId);
+    }
+
+    private synchronized int getDownsampling() {
+        return Math.max(mDownsampling, mPlannedDownsampling);
+    }
+
+    /**
+     * Choose how to decode the theme again, for the current heap usage, cache size and target size.
+     *
+     * @return true if the downsampling of the images changed.
+     */
+    private synchronized boolean updatePlan() {
+        if (mBounds.isEmpty()) return false;
+        int previousDownsampling = getDownsampling();
+        long availableBytes = DecodePlanner.getAvailableBytes(mHeapLimitBytes, mSizeBytes);
+        mPlannedDownsampling = DecodePlanner.plan(availableBytes, mMaxSizeBytes, mBounds.values(),
+                mTargetWidth, mTargetHeight);
+        if (mPlannedDownsampling > 1) {
+            Log.v(TAG, "The theme needs " + mPlannedDownsampling + "x downsampling to fit in " + availableBytes + " bytes");
+        }
+        return getDownsampling() != previousDownsampling;
+    }
+
+    private static synchronized ExecutorService getDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            Log.v(TAG, "Creating decode executor with " + DECODE_THREAD_COUNT + " threads");
+            sDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT, new DecodeThreadFactory());
+        }
+        return sDecodeExecutor;
+    }
+
+    /**
+     * @param outSrc set to the area of the returned bitmap which contains the image.  May be null.
+     * @return the image, if it's in the cache.
+     */
+    synchronized Bitmap get(String imageId, Rect outSrc) {
+        if (mAtlas != null) {
+            Bitmap page = mAtlas.get(imageId, outSrc);
+            if (page != null) return page;
+        }
+        Bitmap bitmap = mImageCache.get(imageId);
+        if (bitmap != null && outSrc != null) outSrc.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return bitmap;
+    }
+
+    /**
+     * @return true if we have the image, decoded the way we decode images now.
+     */
+    private synchronized boolean isLoaded(String imageId) {
+        return get(imageId, null) != null && !mStaleImageIds.contains(imageId);
+    }
+
+    private synchronized boolean isBackgroundLoadAllowed(int generation, String imageId) {
+        if (generation != mGeneration.get()) return false;
+        // The atlas already has room for all its images.
+        return (mAtlas != null && mAtlas.contains(imageId)) || mSizeBytes < mMaxSizeBytes;
+    }
+
+    /**
+     * Keep the given decoded image, unless the cache was cleared since we started decoding it.
+     *
+     * @return the bitmap to draw: the given bitmap, or the atlas page we copied it to.
+     */
+    private synchronized Bitmap putIfGeneration(int generation, String imageId, Bitmap bitmap, Rect outSrc) {
+        if (generation == mGeneration.get()) {
+            if (mAtlas != null && mAtlas.put(imageId, bitmap)) {
+                BitmapPool.getInstance().put(bitmap);
+                // Don't pool the stale image: it may still be on the screen.
+                if (mStaleImageIds.remove(imageId)) {
+                    Bitmap stale = mImageCache.remove(imageId);
+                    if (stale != null) mSizeBytes -= BitmapCompat.getByteCount(stale);
+                }
+                return mAtlas.get(imageId, outSrc);
+            }
+            put(imageId, bitmap);
+        }
+        // If the target size changed while we were decoding, the caller can still use this image, but we won't keep it.
+        if (outSrc != null) outSrc.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return bitmap;
+    }
+
+    private synchronized void put(String imageId, Bitmap bitmap) {
+        mStaleImageIds.remove(imageId);
+        Bitmap previous = mImageCache.put(imageId, bitmap);
+        if (previous != null) mSizeBytes -= BitmapCompat.getByteCount(previous);
+        mSizeBytes += BitmapCompat.getByteCount(bitmap);
+        trimToSize();
+    }
+
+    /**
+     * Evict the least recently used images until we're within our budget.
+     * We always keep the most recently used image and the pinned images, even if they exceed the budget.
+     * The evicted bitmaps are left to the garbage collector, not given to the pool: the cache is
+     * shared by all the engines of the theme, and the render thread of any of them may still be
+     * drawing an evicted bitmap.  We can't tell when they're all done with it.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Bitmap>> iterator = mImageCache.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> eldest = iterator.next();
+            if (!iterator.hasNext()) break;
+            if (mPinCounts.containsKey(eldest.getKey())) continue;
+            Log.v(TAG, "Evicting " + eldest.getKey());
+            mSizeBytes -= BitmapCompat.getByteCount(eldest.getValue());
+            mStaleImageIds.remove(eldest.getKey());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Evict all the images, to decode them again differently.
+     *
+     * @return true if there were images to evict.
+     */
+    private boolean evictAll() {
+        return evictAll(Collections.<String>emptySet());
+    }
+
+    /**
+     * Evict all the images but the given ones and the pinned ones, to decode them again
+     * differently.  The images we keep are decoded again by the next background load.
+     *
+     * @return true if there were images to evict.
+     */
+    private boolean evictAll(Collection<String> keptImageIds) {
+        if (mImageCache.isEmpty() && mAtlas == null) return false;
+        // Another engine sharing this cache may be in the middle of an animation.
+        Set<String> allKeptImageIds = new HashSet<>(keptImageIds);
+        allKeptImageIds.addAll(mPinCounts.keySet());
+        Log.v(TAG, "Evicting all images but " + allKeptImageIds);
+        Map<String, Bitmap> keptImages = new HashMap<>(allKeptImageIds.size());
+        for (String imageId : allKeptImageIds) {
+            Bitmap bitmap = mImageCache.get(imageId);
+            // The atlas holds the whole theme: only keep a copy of the image.
+            if (bitmap == null && mAtlas != null) bitmap = copyFromAtlas(imageId);
+            if (bitmap != null) keptImages.put(imageId, bitmap);
+        }
+        // Don't recycle or pool them: the current image may still be on its way to the screen.
+        mGeneration.incrementAndGet();
+        mImageCache.clear();
+        mStaleImageIds.clear();
+        mAtlas = null;
+        mSizeBytes = 0;
+        for (Map.Entry<String, Bitmap> keptImage : keptImages.entrySet()) {
+            mImageCache.put(keptImage.getKey(), keptImage.getValue());
+            mStaleImageIds.add(keptImage.getKey());
+            mSizeBytes += BitmapCompat.getByteCount(keptImage.getValue());
+        }
+        return true;
+    }
+
+    private Bitmap copyFromAtlas(String imageId) {
+        Rect src = new Rect();
+        Bitmap page = mAtlas.get(imageId, src);
+        if (page == null) return null;
+        return Bitmap.createBitmap(page, src.left, src.top, src.width(), src.height());
+    }
+
+    private class LoadImageTask implements Callable<Bitmap> {
+        private final Context mContext;
+        private final Image mImage;
+
+        LoadImageTask(Context context, Image image) {
+            mContext = context;
+            mImage = image;
+        }
+
+        @Override
+        public Bitmap call() {
+            // The image may be shared with another engine which already loaded it.
+            Bitmap bitmap = get(mImage.getId(), null);
+            if (bitmap != null) return bitmap;
+            return loadImage(mContext, mImage, null);
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(TAG + "-decode-" + mThreadCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    // Don't compete with the ui and drawing threads.
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 
 }
@@ -0,0 +1,192 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.nounours.ThemeBundle;
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * Decides in which order the images of a theme should be loaded, so that Nounours can be
+ * displayed, and can react to the user, as soon as possible:
+ * <ol>
+ * <li>The default image, and the images directly adjacent to it: the "first" images.</li>
+ * <li>The other images reachable from the default image, through adjacentimage.csv.</li>
+ * <li>The images used in animations.</li>
+ * <li>All the other images.</li>
+ * </ol>
+ * Also knows which images can follow each other on the screen.
+ */
+class ImageLoadOrder {
+    private static final String TAG = Constants.TAG + ImageLoadOrder.class.getSimpleName();
+
+    private final List<Image> mFirstImages = new ArrayList<>();
+    private final List<Image> mRemainingImages = new ArrayList<>();
+    private final Map<String, Set<String>> mTransitions = new HashMap<>();
+
+    ImageLoadOrder(Context context, Theme theme) {
+        Map<String, Image> images = theme.getImages();
+        Image defaultImage = theme.getDefaultImage();
+        AdjacentImageReader adjacentImageReader = readAdjacentImages(context, theme);
+        readTransitions(theme, adjacentImageReader);
+        if (defaultImage == null || adjacentImageReader == null) {
+            Log.v(TAG, "Can't determine the image order for theme " + theme + ", loading all images first");
+            mFirstImages.addAll(images.values());
+            return;
+        }
+
+        // The default image and its direct neighbors
+        Map<String, Image> orderedImages = new LinkedHashMap<>();
+        orderedImages.put(defaultImage.getId(), defaultImage);
+        addImages(orderedImages, images, adjacentImageReader.getAdjacentImageIds(defaultImage.getId()));
+        mFirstImages.addAll(orderedImages.values());
+
+        // Breadth-first walk of the images reachable from the default image
+        Queue<Image> queue = new LinkedList<>(mFirstImages);
+        while (!queue.isEmpty()) {
+            Image image = queue.remove();
+            for (String adjacentImageId : adjacentImageReader.getAdjacentImageIds(image.getId())) {
+                Image adjacentImage = images.get(adjacentImageId);
+                if (adjacentImage != null && !orderedImages.containsKey(adjacentImageId)) {
+                    orderedImages.put(adjacentImageId, adjacentImage);
+                    queue.add(adjacentImage);
+                }
+            }
+        }
+
+        // The animation frames
+        for (Animation animation : theme.getAnimations().values()) {
+            for (AnimationImage animationImage : animation.getImages()) {
+                Image image = animationImage.getImage();
+                if (image != null && !orderedImages.containsKey(image.getId())) {
+                    orderedImages.put(image.getId(), image);
+                }
+            }
+        }
+
+        // Everything else
+        for (Image image : images.values()) {
+            if (!orderedImages.containsKey(image.getId())) orderedImages.put(image.getId(), image);
+        }
+
+        mRemainingImages.addAll(orderedImages.values());
+        mRemainingImages.removeAll(mFirstImages);
+        Log.v(TAG, "Theme " + theme.getId() + ": " + mFirstImages.size() + " first images, "
+                + mRemainingImages.size() + " remaining images");
+    }
+
+    /**
+     * @return the images we need before we can display the theme.
+     */
+    List<Image> getFirstImages() {
+        return mFirstImages;
+    }
+
+    /**
+     * @return the images which may be loaded in the background, in the order in which they should be loaded.
+     */
+    List<Image> getRemainingImages() {
+        return mRemainingImages;
+    }
+
+    /**
+     * @return for each image id, the ids of the images which may be displayed right after it:
+     * the adjacent images, and the next frames of the animations.
+     */
+    Map<String, Set<String>> getTransitions() {
+        return mTransitions;
+    }
+
+    private void readTransitions(Theme theme, AdjacentImageReader adjacentImageReader) {
+        if (adjacentImageReader != null) {
+            for (String imageId : adjacentImageReader.getImageIds()) {
+                for (String adjacentImageId : adjacentImageReader.getAdjacentImageIds(imageId)) {
+                    // The user can move back to where they came from.
+                    addTransition(imageId, adjacentImageId);
+                    addTransition(adjacentImageId, imageId);
+                }
+            }
+        }
+        for (Animation animation : theme.getAnimations().values()) {
+            List<AnimationImage> animationImages = animation.getImages();
+            for (int i = 0; i < animationImages.size(); i++) {
+                // The last frame is followed by the first one, when the animation repeats.
+                Image image = animationImages.get(i).getImage();
+                Image nextImage = animationImages.get((i + 1) % animationImages.size()).getImage();
+                if (image != null && nextImage != null) addTransition(image.getId(), nextImage.getId());
+            }
+        }
+    }
+
+    private void addTransition(String fromImageId, String toImageId) {
+        if (fromImageId.equals(toImageId)) return;
+        Set<String> toImageIds = mTransitions.get(fromImageId);
+        if (toImageIds == null) {
+            toImageIds = new HashSet<>();
+            mTransitions.put(fromImageId, toImageIds);
+        }
+        toImageIds.add(toImageId);
+    }
+
+    private static void addImages(Map<String, Image> orderedImages, Map<String, Image> images, Collection<String> imageIds) {
+        for (String imageId : imageIds) {
+            Image image = images.get(imageId);
+            if (image != null && !orderedImages.containsKey(imageId)) orderedImages.put(imageId, image);
+        }
+    }
+
+    private static AdjacentImageReader readAdjacentImages(Context context, Theme theme) {
+        InputStream is = null;
+        try {
+            is = ThemeBundle.openAsset(context, "themes/" + theme.getId() + "/adjacentimage.csv");
+            return new AdjacentImageReader(is);
+        } catch (IOException e) {
+            Log.v(TAG, "Couldn't read the adjacent images: " + e.getMessage(), e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.v(TAG, "Couldn't close the adjacent image file: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+/**
+ * How much of the heap the images may use, for all the engines of the process together.
+ * The decoded images, the scaled images of the renderers and the bitmap pool each get a share
+ * of one total, so running the app, the wallpaper and the daydream at the same time doesn't
+ * add up to more than the total.
+ */
+public final class MemoryBudget {
+    // All the bitmaps of the process.  The rest of the heap is left to the rest of the app.
+    private static final long TOTAL_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+    private MemoryBudget() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return the number of bytes the image caches of all the themes may use together.
+     */
+    public static long getImageCacheBytes() {
+        return TOTAL_BYTES * 2 / 3;
+    }
+
+    /**
+     * @return the number of bytes the scaled images of all the renderers may use together.
+     */
+    public static long getRenderCacheBytes() {
+        return TOTAL_BYTES / 4;
+    }
+
+    /**
+     * @return the number of bytes the bitmaps waiting to be reused may use.
+     */
+    static long getBitmapPoolBytes() {
+        return TOTAL_BYTES - getImageCacheBytes() - getRenderCacheBytes();
+    }
+}
@@ -20,56 +20,256 @@ package ca.rmen.nounours.android.common.nounours.cache;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.ContextCompat;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
 import ca.rmen.nounours.data.Image;
 import ca.rmen.nounours.data.Theme;
 
 /**
  * Responsible for caching and freeing the image and sound resources needed by Nounours.
+ * The images are kept in an image cache shared with the other engines of the process which
+ * display the same theme.
  */
 public class NounoursResourceCache {
     private static final String TAG = Constants.TAG + NounoursResourceCache.class.getSimpleName();
 
+    // How long we go without memory pressure before we bring back the images we let go of.
+    private static final long MEMORY_PRESSURE_TIMEOUT_MS = 60000;
+    // Under moderate memory pressure, the images are decoded at this fraction of their size.
+    private static final int MEMORY_PRESSURE_DOWNSAMPLING = 2;
+
     private final Context mContext;
     private final Handler mUiHandler;
 
     private final NounoursSettings mSettings;
 
-    private final ImageCache mImageCache;
     private final SoundCache mSoundCache;
+    // Our reference to the shared image cache of the current theme.  Null if we have no theme.
+    private volatile SharedImageCaches.Handle mImageCacheHandle;
+    private volatile ImageLoadOrder mImageLoadOrder;
+    private volatile FrameDiffs mFrameDiffs;
+
+    // What we require from the image caches we use.
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private long mMaxImageCacheSizeBytes = Long.MAX_VALUE;
+    private boolean mIsAtlasEnabled;
 
+    // The worst memory pressure we've had to deal with since we last restored our images.
+    private volatile int mMemoryPressure = ContextCompat.MEMORY_PRESSURE_NONE;
+    private volatile long mMemoryPressureTime;
 
     public NounoursResourceCache(Context context,
                                          NounoursSettings settings,
-                                         ImageCache imageCache,
                                          SoundCache soundCache) {
         mContext = context;
         mUiHandler = new Handler();
         mSettings = settings;
-        mImageCache = imageCache;
         mSoundCache = soundCache;
+        // Until we know the size of our surface, assume it's the size of the screen.
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        mTargetWidth = displayMetrics.widthPixels;
+        mTargetHeight = displayMetrics.heightPixels;
     }
 
-    public NounoursResourceCache(Context context, NounoursSettings settings, ImageCache imageCache) {
-        this(context, settings, imageCache, null);
+    public NounoursResourceCache(Context context, NounoursSettings settings) {
+        this(context, settings, null);
     }
 
+    /**
+     * Load the images Nounours needs to be displayed: the default image and its adjacent images.
+     * The listener is notified of the progress of these images only.
+     * Once they're loaded, the other images of the theme are loaded in the background.
+     *
+     * @return true if the first images were loaded.
+     */
     public boolean loadImages(Theme theme, ImageCache.ImageCacheListener imageCacheListener) {
         Log.v(TAG, "loadImages, theme = " + theme);
-        return mImageCache.cacheImages(mContext, theme.getImages().values(), mUiHandler, imageCacheListener);
+        ImageCache imageCache = acquireImageCache(theme.getId());
+        ImageLoadOrder imageLoadOrder = new ImageLoadOrder(mContext, theme);
+        mImageLoadOrder = imageLoadOrder;
+        // Choose how to decode the whole theme, so that no decode runs out of memory.
+        imageCache.planDecode(mContext, theme.getImages().values());
+        // If another engine displays this theme, the images it loaded are used right away.
+        imageCache.prepareAtlas(mContext, theme.getImages().values());
+        if (!imageCache.cacheImages(mContext, imageLoadOrder.getFirstImages(), mUiHandler, imageCacheListener)) {
+            return false;
+        }
+        loadImagesInBackground(imageCache, imageLoadOrder, imageLoadOrder.getRemainingImages());
+        return true;
+    }
+
+    /**
+     * @param imageSrc the area of its bitmap which contains the image we're about to draw.
+     * @param outDiff  set to the area of the image which differs from the previous image,
+     *                 relative to the top-left corner of the image.
+     * @return false if we don't know what differs between the two images.
+     */
+    public boolean getFrameDiff(String fromImageId, String toImageId, Rect imageSrc, Rect outDiff) {
+        FrameDiffs frameDiffs = mFrameDiffs;
+        return frameDiffs != null && frameDiffs.get(fromImageId, toImageId, imageSrc.width(), imageSrc.height(), outDiff);
+    }
+
+    /**
+     * Limit the memory used by the decoded images of this engine.
+     *
+     * @param maxSizeBytes the maximum number of bytes the decoded images may use.
+     */
+    public synchronized void setMaxImageCacheSize(long maxSizeBytes) {
+        mMaxImageCacheSizeBytes = maxSizeBytes;
+        if (mImageCacheHandle != null) mImageCacheHandle.setMaxSize(maxSizeBytes);
+    }
+
+    /**
+     * In atlas mode, the images of a theme are packed into a few large bitmaps.  This uses less
+     * memory when the theme fits in the image cache, but the whole theme stays in memory.
+     */
+    public synchronized void setAtlasEnabled(boolean isAtlasEnabled) {
+        mIsAtlasEnabled = isAtlasEnabled;
+        if (mImageCacheHandle != null) mImageCacheHandle.setAtlasEnabled(isAtlasEnabled);
+    }
+
+    /**
+     * Decode the images for a surface of the given size.  If the images we have don't suit this
+     * size, they are reloaded in the background.
+     */
+    public void setSurfaceSize(int width, int height) {
+        SharedImageCaches.Handle imageCacheHandle;
+        synchronized (this) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+            imageCacheHandle = mImageCacheHandle;
+        }
+        // Under memory pressure, the images are only decoded when they're displayed.
+        if (imageCacheHandle != null && imageCacheHandle.setTargetSize(width, height)
+                && mMemoryPressure == ContextCompat.MEMORY_PRESSURE_NONE) {
+            reloadImagesInBackground(imageCacheHandle.getImageCache());
+        }
     }
 
+    /**
+     * Let go of images, so the system doesn't have to kill our process to get memory back:
+     * <ul>
+     * <li>Under light pressure, we only keep the current image and the images which can follow it.</li>
+     * <li>Under moderate pressure, we also decode these images at a smaller size.</li>
+     * <li>Under critical pressure, we only keep the current image.</li>
+     * </ul>
+     * The other images are decoded when they're displayed.  Once we go
+     * {@link #MEMORY_PRESSURE_TIMEOUT_MS} without memory pressure, the images are restored in the background.
+     *
+     * @param memoryPressure one of the {@link ContextCompat} MEMORY_PRESSURE_ constants.
+     * @param currentImage   the image on the screen. May be null.
+     */
+    public void onMemoryPressure(int memoryPressure, Image currentImage) {
+        Log.v(TAG, "onMemoryPressure " + memoryPressure);
+        mMemoryPressureTime = SystemClock.uptimeMillis();
+        if (memoryPressure > mMemoryPressure) mMemoryPressure = memoryPressure;
+        // Bitmaps waiting to be reused are the cheapest to give up.
+        BitmapPool.getInstance().clear();
+
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        ImageLoadOrder imageLoadOrder = mImageLoadOrder;
+        if (imageCacheHandle == null || imageLoadOrder == null || currentImage == null) return;
+        ImageCache imageCache = imageCacheHandle.getImageCache();
+        Set<String> imageIds = new HashSet<>();
+        imageIds.add(currentImage.getId());
+        if (memoryPressure < ContextCompat.MEMORY_PRESSURE_CRITICAL) {
+            Set<String> nextImageIds = imageLoadOrder.getTransitions().get(currentImage.getId());
+            if (nextImageIds != null) imageIds.addAll(nextImageIds);
+        }
+        // The other engines which display this theme keep the images they need.
+        imageCacheHandle.retainOnly(imageIds);
+        if (memoryPressure >= ContextCompat.MEMORY_PRESSURE_MODERATE
+                && imageCacheHandle.setDownsampling(MEMORY_PRESSURE_DOWNSAMPLING, currentImage.getId())
+                && memoryPressure < ContextCompat.MEMORY_PRESSURE_CRITICAL) {
+            // Decode the images we kept again, at the smaller size.
+            List<Image> images = new ArrayList<>(imageIds.size());
+            images.add(currentImage);
+            addImages(images, imageLoadOrder.getFirstImages(), imageIds);
+            addImages(images, imageLoadOrder.getRemainingImages(), imageIds);
+            imageCache.cacheImagesInBackground(mContext, images);
+        }
+    }
+
+    /**
+     * @return the given image, or null if we haven't loaded a theme.
+     */
     public Bitmap getDrawableImage(Context context, Image image) {
-        return mImageCache.getDrawableImage(context, image);
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        if (imageCacheHandle == null) return null;
+        return imageCacheHandle.getImageCache().getDrawableImage(context, image);
+    }
+
+    /**
+     * @param outSrc set to the area of the returned bitmap which contains the image.
+     * @return the bitmap containing the given image, or null if we haven't loaded a theme.
+     */
+    public Bitmap getDrawableImage(Context context, Image image, Rect outSrc) {
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        if (imageCacheHandle == null) return null;
+        if (mMemoryPressure != ContextCompat.MEMORY_PRESSURE_NONE
+                && SystemClock.uptimeMillis() - mMemoryPressureTime > MEMORY_PRESSURE_TIMEOUT_MS) {
+            onMemoryPressureOver(imageCacheHandle, image);
+        }
+        return imageCacheHandle.getImageCache().getDrawableImage(context, image, outSrc);
     }
 
+    /**
+     * Nounours is sitting still on the given image.  Once all the engines using these images are
+     * idle, only the images they display are kept.
+     */
+    public void onIdle(Image currentImage) {
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        if (imageCacheHandle != null && currentImage != null) imageCacheHandle.setIdleImage(currentImage.getId());
+    }
+
+    /**
+     * Nounours is active again.  The images evicted while it was idle are loaded back in the background.
+     */
+    public void onActive() {
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        if (imageCacheHandle != null && imageCacheHandle.setIdleImage(null)
+                && mMemoryPressure == ContextCompat.MEMORY_PRESSURE_NONE) {
+            reloadImagesInBackground(imageCacheHandle.getImageCache());
+        }
+    }
+
+    /**
+     * Keep the given images in memory until {@link PinnedImages#unpin()} is called, and start
+     * decoding the missing ones in parallel.
+     *
+     * @return the pinned images, or null if no theme is loaded.
+     */
+    public PinnedImages pinImages(Collection<Image> images) {
+        SharedImageCaches.Handle imageCacheHandle = mImageCacheHandle;
+        if (imageCacheHandle == null) return null;
+        ImageCache imageCache = imageCacheHandle.getImageCache();
+        imageCache.pin(images);
+        return new PinnedImages(imageCache, images, imageCache.loadImages(mContext, images));
+    }
+
+    /**
+     * Let go of the images of the current theme.  They're only freed if no other engine is
+     * displaying this theme.
+     */
     public void freeImages() {
         Log.v(TAG, "freeImages");
-        mImageCache.clearImageCache();
+        mImageLoadOrder = null;
+        mFrameDiffs = null;
+        releaseImageCache();
     }
 
     public boolean loadSounds(Theme theme) {
@@ -83,4 +283,65 @@ public class NounoursResourceCache {
         if (mSoundCache != null) mSoundCache.clearSoundCache();
     }
 
+    /**
+     * Decode the images at their usual size again, and load the theme back in the background.
+     * The image we're about to draw is kept until it's decoded again.
+     */
+    private synchronized void onMemoryPressureOver(SharedImageCaches.Handle imageCacheHandle, Image currentImage) {
+        if (mMemoryPressure == ContextCompat.MEMORY_PRESSURE_NONE) return;
+        Log.v(TAG, "onMemoryPressureOver");
+        mMemoryPressure = ContextCompat.MEMORY_PRESSURE_NONE;
+        imageCacheHandle.onMemoryPressureOver();
+        imageCacheHandle.setDownsampling(1, currentImage.getId());
+        reloadImagesInBackground(imageCacheHandle.getImageCache());
+    }
+
+    private void reloadImagesInBackground(ImageCache imageCache) {
+        ImageLoadOrder imageLoadOrder = mImageLoadOrder;
+        if (imageLoadOrder == null) return;
+        List<Image> images = new ArrayList<>(imageLoadOrder.getFirstImages());
+        images.addAll(imageLoadOrder.getRemainingImages());
+        loadImagesInBackground(imageCache, imageLoadOrder, images);
+    }
+
+    /**
+     * Load the given images in the background, then compare the images which can follow each
+     * other on the screen.
+     */
+    private void loadImagesInBackground(final ImageCache imageCache, final ImageLoadOrder imageLoadOrder, List<Image> images) {
+        // Until the new comparisons are done, the surface is drawn entirely.
+        final FrameDiffs frameDiffs = new FrameDiffs();
+        mFrameDiffs = null;
+        imageCache.cacheImagesInBackground(mContext, images, new Runnable() {
+            @Override
+            public void run() {
+                frameDiffs.compute(imageCache, imageLoadOrder.getTransitions());
+                if (mImageLoadOrder == imageLoadOrder) mFrameDiffs = frameDiffs;
+            }
+        });
+    }
+
+    private static void addImages(List<Image> result, List<Image> images, Set<String> imageIds) {
+        for (Image image : images) {
+            if (imageIds.contains(image.getId()) && !result.contains(image)) result.add(image);
+        }
+    }
+
+    /**
+     * Let go of the image cache of the previous theme, if any, and get the one of the given theme.
+     */
+    private synchronized ImageCache acquireImageCache(String themeId) {
+        releaseImageCache();
+        mImageCacheHandle = SharedImageCaches.acquire(themeId, mTargetWidth, mTargetHeight,
+                mMaxImageCacheSizeBytes, mIsAtlasEnabled);
+        return mImageCacheHandle.getImageCache();
+    }
+
+    private synchronized void releaseImageCache() {
+        if (mImageCacheHandle != null) {
+            mImageCacheHandle.release();
+            mImageCacheHandle = null;
+        }
+    }
+
 }
@@ -0,0 +1,70 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import ca.rmen.nounours.data.Image;
+
+/**
+ * Images pinned in one image cache by {@link NounoursResourceCache#pinImages(Collection)}.
+ * They're unpinned from that same cache, even if the theme changed in the meantime.
+ */
+public final class PinnedImages {
+    private final ImageCache mImageCache;
+    private final Collection<Image> mImages;
+    private final List<Future<Bitmap>> mDecodes;
+
+    PinnedImages(ImageCache imageCache, Collection<Image> images, List<Future<Bitmap>> decodes) {
+        mImageCache = imageCache;
+        mImages = images;
+        mDecodes = decodes;
+    }
+
+    /**
+     * Wait until the missing images are decoded, or until the timeout expires.
+     *
+     * @return true if all the images are in memory.
+     */
+    public boolean awaitLoaded(long timeoutMs) {
+        return ImageCache.awaitImages(mDecodes, timeoutMs);
+    }
+
+    /**
+     * @return true if the decodes are over, whether they succeeded or not.
+     */
+    public boolean isDone() {
+        for (Future<Bitmap> decode : mDecodes) {
+            if (!decode.isDone()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Let the images be evicted again.
+     */
+    public void unpin() {
+        mImageCache.unpin(mImages);
+    }
+}
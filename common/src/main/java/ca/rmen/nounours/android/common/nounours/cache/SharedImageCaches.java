@@ -0,0 +1,271 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.rmen.nounours.android.common.Constants;
+
+/**
+ * The image caches of the process: one per theme, shared by all the engines (app, wallpaper,
+ * daydream...) which display this theme, so its images are only decoded and kept once.
+ *
+ * Each engine acquires a {@link Handle} on the cache of its theme, and releases it when it no
+ * longer displays the theme.  The cache is cleared when its last handle is released.
+ * The cache decodes the images for the largest surface of its engines, and may use as much
+ * memory as the engine with the largest budget, within its share of the
+ * {@link MemoryBudget#getImageCacheBytes()} of all the themes.  Once all its engines are idle, it only keeps
+ * the images they display.
+ */
+final class SharedImageCaches {
+    private static final String TAG = Constants.TAG + SharedImageCaches.class.getSimpleName();
+
+    private static final Map<String, ImageCache> sImageCaches = new HashMap<>();
+    private static final Map<String, List<Handle>> sHandles = new HashMap<>();
+
+    private SharedImageCaches() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return a handle on the image cache for the given theme, which must be released when
+     * the caller no longer needs the images.
+     */
+    static synchronized Handle acquire(String themeId, int targetWidth, int targetHeight,
+                                       long maxSizeBytes, boolean isAtlasEnabled) {
+        ImageCache imageCache = sImageCaches.get(themeId);
+        List<Handle> handles = sHandles.get(themeId);
+        if (imageCache == null) {
+            imageCache = new ImageCache();
+            handles = new ArrayList<>();
+            sImageCaches.put(themeId, imageCache);
+            sHandles.put(themeId, handles);
+        }
+        Handle handle = new Handle(themeId, imageCache, targetWidth, targetHeight, maxSizeBytes, isAtlasEnabled);
+        handles.add(handle);
+        Log.v(TAG, "acquire " + themeId + ": " + handles.size() + " users");
+        // A new theme takes a share of the memory of the others.
+        updateAll();
+        return handle;
+    }
+
+    private static synchronized void release(Handle handle) {
+        List<Handle> handles = sHandles.get(handle.mThemeId);
+        if (handles == null || !handles.remove(handle)) return;
+        Log.v(TAG, "release " + handle.mThemeId + ": " + handles.size() + " users");
+        if (handles.isEmpty()) {
+            sHandles.remove(handle.mThemeId);
+            sImageCaches.remove(handle.mThemeId).clearImageCache();
+            updateAll();
+        } else {
+            update(handle.mThemeId);
+        }
+    }
+
+    private static void updateAll() {
+        for (String themeId : sImageCaches.keySet()) {
+            update(themeId);
+        }
+    }
+
+    /**
+     * Configure the cache of the given theme for all of its users.
+     *
+     * @return true if the images of the cache were evicted, because they don't suit the new target size.
+     */
+    private static boolean update(String themeId) {
+        ImageCache imageCache = sImageCaches.get(themeId);
+        List<Handle> handles = sHandles.get(themeId);
+        if (imageCache == null || handles == null) return false;
+        int targetWidth = 0;
+        int targetHeight = 0;
+        long maxSizeBytes = 0;
+        boolean isAtlasEnabled = true;
+        for (Handle handle : handles) {
+            targetWidth = Math.max(targetWidth, handle.mTargetWidth);
+            targetHeight = Math.max(targetHeight, handle.mTargetHeight);
+            maxSizeBytes = Math.max(maxSizeBytes, handle.mMaxSizeBytes);
+            // The whole theme stays in memory in atlas mode: only do it if everybody agrees.
+            isAtlasEnabled &= handle.mIsAtlasEnabled;
+        }
+        // The themes displayed at the same time share one budget.
+        maxSizeBytes = Math.min(maxSizeBytes, MemoryBudget.getImageCacheBytes() / sImageCaches.size());
+        imageCache.setMaxSize(maxSizeBytes);
+        imageCache.setAtlasEnabled(isAtlasEnabled);
+        return imageCache.setTargetSize(targetWidth, targetHeight);
+    }
+
+    /**
+     * If all the users of the cache of the given theme are idle, evict the images they don't display.
+     */
+    private static void trimIdle(String themeId) {
+        ImageCache imageCache = sImageCaches.get(themeId);
+        List<Handle> handles = sHandles.get(themeId);
+        if (imageCache == null || handles == null) return;
+        Set<String> imageIds = new HashSet<>();
+        for (Handle handle : handles) {
+            if (handle.mIdleImageId == null) return;
+            imageIds.add(handle.mIdleImageId);
+        }
+        Log.v(TAG, "All the users of " + themeId + " are idle");
+        imageCache.retainOnly(imageIds);
+        for (Handle handle : handles) {
+            handle.mIsTrimmedForIdle = true;
+        }
+    }
+
+    /**
+     * @return the images the users of the cache of the given theme need to keep, under memory
+     * pressure: the images they told us about, and the images of the idle users.
+     */
+    private static Set<String> getRetainedImageIds(String themeId, String currentImageId) {
+        Set<String> imageIds = new HashSet<>();
+        if (currentImageId != null) imageIds.add(currentImageId);
+        List<Handle> handles = sHandles.get(themeId);
+        if (handles == null) return imageIds;
+        for (Handle handle : handles) {
+            if (handle.mRetainedImageIds != null) imageIds.addAll(handle.mRetainedImageIds);
+            if (handle.mIdleImageId != null) imageIds.add(handle.mIdleImageId);
+        }
+        return imageIds;
+    }
+
+    /**
+     * One user's reference to the image cache of a theme, with the user's requirements.
+     */
+    static final class Handle {
+        private final String mThemeId;
+        private final ImageCache mImageCache;
+        private int mTargetWidth;
+        private int mTargetHeight;
+        private long mMaxSizeBytes;
+        private boolean mIsAtlasEnabled;
+        // The image this user displays while it's idle, or null if it's active.
+        private String mIdleImageId;
+        // True if images were evicted since this user went idle.
+        private boolean mIsTrimmedForIdle;
+        // Under memory pressure, the images this user needs.  Null if there's no memory pressure.
+        private Set<String> mRetainedImageIds;
+
+        private Handle(String themeId, ImageCache imageCache, int targetWidth, int targetHeight,
+                       long maxSizeBytes, boolean isAtlasEnabled) {
+            mThemeId = themeId;
+            mImageCache = imageCache;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+            mMaxSizeBytes = maxSizeBytes;
+            mIsAtlasEnabled = isAtlasEnabled;
+        }
+
+        ImageCache getImageCache() {
+            return mImageCache;
+        }
+
+        /**
+         * @return true if the images of the cache were evicted, because they don't suit the new target size.
+         */
+        boolean setTargetSize(int width, int height) {
+            synchronized (SharedImageCaches.class) {
+                mTargetWidth = width;
+                mTargetHeight = height;
+                return update(mThemeId);
+            }
+        }
+
+        void setMaxSize(long maxSizeBytes) {
+            synchronized (SharedImageCaches.class) {
+                mMaxSizeBytes = maxSizeBytes;
+                update(mThemeId);
+            }
+        }
+
+        void setAtlasEnabled(boolean isAtlasEnabled) {
+            synchronized (SharedImageCaches.class) {
+                mIsAtlasEnabled = isAtlasEnabled;
+                update(mThemeId);
+            }
+        }
+
+        /**
+         * @param idleImageId the image this user keeps displaying while it's idle, or null if
+         *                    it's active again.
+         * @return true if the user is active again, and images were evicted while it was idle.
+         */
+        boolean setIdleImage(String idleImageId) {
+            synchronized (SharedImageCaches.class) {
+                mIdleImageId = idleImageId;
+                if (idleImageId != null) {
+                    trimIdle(mThemeId);
+                    return false;
+                }
+                boolean isTrimmedForIdle = mIsTrimmedForIdle;
+                mIsTrimmedForIdle = false;
+                return isTrimmedForIdle;
+            }
+        }
+
+        /**
+         * Under memory pressure, evict the images this user doesn't need.  The images the other
+         * users need are kept too.
+         *
+         * @param imageIds the images this user needs, until {@link #onMemoryPressureOver()}.
+         */
+        void retainOnly(Collection<String> imageIds) {
+            synchronized (SharedImageCaches.class) {
+                mRetainedImageIds = new HashSet<>(imageIds);
+                mImageCache.retainOnly(getRetainedImageIds(mThemeId, null));
+            }
+        }
+
+        /**
+         * Decode the images at 1/factor of their usual size.  The images the users need (see
+         * {@link #retainOnly(Collection)}) are kept until they're decoded again.
+         *
+         * @param currentImageId the image this user displays.  Also kept.
+         * @return true if images were evicted.
+         */
+        boolean setDownsampling(int factor, String currentImageId) {
+            synchronized (SharedImageCaches.class) {
+                return mImageCache.setDownsampling(factor, getRetainedImageIds(mThemeId, currentImageId));
+            }
+        }
+
+        void onMemoryPressureOver() {
+            synchronized (SharedImageCaches.class) {
+                mRetainedImageIds = null;
+            }
+        }
+
+        /**
+         * The caller must not use the image cache after this.
+         */
+        void release() {
+            SharedImageCaches.release(this);
+        }
+    }
+}
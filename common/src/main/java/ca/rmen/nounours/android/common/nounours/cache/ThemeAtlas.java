@@ -0,0 +1,250 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.rmen.nounours.android.common.Constants;
+import ca.rmen.nounours.android.common.compat.BitmapCompat;
+
+/**
+ * The images of a theme, packed into a few large bitmaps (pages) instead of one bitmap each.
+ * The layout of the pages is planned for all the images of the theme up front, and the images
+ * are copied into their place as they're decoded.
+ *
+ * Images are packed in shelves: rows as high as their highest image, filled from left to right.
+ */
+final class ThemeAtlas {
+    private static final String TAG = Constants.TAG + ThemeAtlas.class.getSimpleName();
+
+    // Keeps each page a reasonable allocation, even on devices with a fragmented heap.
+    private static final int MAX_PAGE_SIZE = 2048;
+
+    private final List<Bitmap> mPages;
+    private final Map<String, Region> mRegions;
+    private final long mByteCount;
+    private final Paint mPaint = new Paint();
+
+    private ThemeAtlas(List<Bitmap> pages, Map<String, Region> regions) {
+        mPages = pages;
+        mRegions = regions;
+        long byteCount = 0;
+        for (Bitmap page : pages) byteCount += BitmapCompat.getByteCount(page);
+        mByteCount = byteCount;
+        // Replace the pixels in the page, don't blend the image with them.
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * @return true if the given image has a place in this atlas, whether it was copied there yet or not.
+     */
+    boolean contains(String imageId) {
+        return mRegions.containsKey(imageId);
+    }
+
+    /**
+     * @param outSrc set to the area of the page which contains the image.  May be null.
+     * @return the page containing the given image, or null if the image isn't in the atlas yet.
+     */
+    Bitmap get(String imageId, Rect outSrc) {
+        Region region = mRegions.get(imageId);
+        if (region == null || !region.isFilled) return null;
+        if (outSrc != null) outSrc.set(region.rect);
+        return mPages.get(region.page);
+    }
+
+    /**
+     * Copy the given decoded image into its place in the atlas.
+     *
+     * @return false if the image has no place in this atlas, or if it doesn't have the size and
+     * config we planned for.  The bitmap can be reused if this returns true.
+     */
+    boolean put(String imageId, Bitmap bitmap) {
+        Region region = mRegions.get(imageId);
+        if (region == null) return false;
+        Bitmap page = mPages.get(region.page);
+        if (bitmap.getWidth() != region.rect.width()
+                || bitmap.getHeight() != region.rect.height()
+                || bitmap.getConfig() != page.getConfig()) {
+            Log.v(TAG, "Image " + imageId + " doesn't fit in its place in the atlas");
+            return false;
+        }
+        new Canvas(page).drawBitmap(bitmap, null, region.rect, mPaint);
+        region.isFilled = true;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes used by the pages.
+     */
+    long getByteCount() {
+        return mByteCount;
+    }
+
+    List<Bitmap> getPages() {
+        return mPages;
+    }
+
+    /**
+     * Plans the layout of an atlas.
+     */
+    static class Builder {
+        private final List<Item> mItems = new ArrayList<>();
+
+        /**
+         * @param width  the width of the image once decoded.
+         * @param height the height of the image once decoded.
+         * @param config the config the image will be decoded with.
+         */
+        void add(String imageId, int width, int height, Bitmap.Config config) {
+            mItems.add(new Item(imageId, width, height, config));
+        }
+
+        /**
+         * @return the atlas, with empty pages, or null if the pages would use more than the given
+         * number of bytes, or if we don't have the memory for them.
+         */
+        ThemeAtlas build(long maxSizeBytes) {
+            // Shelves waste the least space when the images are sorted by height.
+            Collections.sort(mItems, new Comparator<Item>() {
+                @Override
+                public int compare(Item item1, Item item2) {
+                    return item2.height - item1.height;
+                }
+            });
+
+            // Plan the pages: each page has a single config.
+            List<Page> pages = new ArrayList<>();
+            Map<String, Region> regions = new HashMap<>(mItems.size());
+            for (Bitmap.Config config : Bitmap.Config.values()) {
+                List<Item> items = new ArrayList<>();
+                for (Item item : mItems) {
+                    if (item.config == config) items.add(item);
+                }
+                if (!items.isEmpty()) layOut(config, items, pages, regions);
+            }
+
+            long byteCount = 0;
+            for (Page page : pages) byteCount += page.getByteCount();
+            Log.v(TAG, mItems.size() + " images in " + pages.size() + " pages of " + byteCount + " bytes");
+            if (byteCount > maxSizeBytes) return null;
+
+            List<Bitmap> bitmaps = new ArrayList<>(pages.size());
+            try {
+                for (Page page : pages) {
+                    bitmaps.add(Bitmap.createBitmap(page.width, page.height, page.config));
+                }
+            } catch (OutOfMemoryError e) {
+                Log.v(TAG, "Not enough memory for the atlas", e);
+                for (Bitmap bitmap : bitmaps) bitmap.recycle();
+                return null;
+            }
+            return new ThemeAtlas(bitmaps, regions);
+        }
+
+        private static void layOut(Bitmap.Config config, List<Item> items, List<Page> pages, Map<String, Region> regions) {
+            int maxItemWidth = 0;
+            int totalWidth = 0;
+            for (Item item : items) {
+                maxItemWidth = Math.max(maxItemWidth, item.width);
+                totalWidth += item.width;
+            }
+            int maxPageWidth = Math.max(maxItemWidth, Math.min(MAX_PAGE_SIZE, totalWidth));
+
+            Page page = null;
+            int x = 0;
+            int shelfY = 0;
+            int shelfHeight = 0;
+            for (Item item : items) {
+                if (page != null && x + item.width > maxPageWidth) {
+                    // Start a new shelf.
+                    shelfY += shelfHeight;
+                    x = 0;
+                    shelfHeight = 0;
+                }
+                if (page == null || (shelfY + item.height > MAX_PAGE_SIZE && shelfY > 0)) {
+                    page = new Page(config);
+                    pages.add(page);
+                    x = 0;
+                    shelfY = 0;
+                    shelfHeight = 0;
+                }
+                regions.put(item.imageId, new Region(pages.size() - 1, new Rect(x, shelfY, x + item.width, shelfY + item.height)));
+                x += item.width;
+                shelfHeight = Math.max(shelfHeight, item.height);
+                page.width = Math.max(page.width, x);
+                page.height = Math.max(page.height, shelfY + shelfHeight);
+            }
+        }
+    }
+
+    private static class Item {
+        private final String imageId;
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        Item(String imageId, int width, int height, Bitmap.Config config) {
+            this.imageId = imageId;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+    }
+
+    private static class Page {
+        private final Bitmap.Config config;
+        private int width;
+        private int height;
+
+        Page(Bitmap.Config config) {
+            this.config = config;
+        }
+
+        long getByteCount() {
+            int bytesPerPixel = config == Bitmap.Config.ARGB_8888 ? 4 : config == Bitmap.Config.ALPHA_8 ? 1 : 2;
+            return (long) width * height * bytesPerPixel;
+        }
+    }
+
+    private static class Region {
+        private final int page;
+        private final Rect rect;
+        private boolean isFilled;
+
+        Region(int page, Rect rect) {
+            this.page = page;
+            this.rect = rect;
+        }
+    }
+}
@@ -34,59 +34,179 @@ import ca.rmen.nounours.data.Image;
 public class BitmapUtil {
     private static final String TAG = Constants.TAG + BitmapUtil.class.getSimpleName();
 
-    private static final int BITMAP_LOAD_RETRIES = 3;
-    private static final int BITMAP_INITIAL_SUB_SAMPLE = 0;
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
 
+    /**
+     * Decode the given image at its full size.
+     */
     public static Bitmap createBitmap(Context context, Image image) {
-        final Bitmap result;
-        // This is one of the themed images, in the assets.
-        if(image.getFilename().startsWith("themes")) {
-            Log.v(TAG, "Load themed image.");
-            result = loadBitmap(context, image.getFilename());
+        return createBitmap(context, image, decodeBounds(context, image), 0, 0, null);
+    }
+
+    /**
+     * Decode the given image, to be displayed on a surface of the given size.
+     *
+     * @param bounds       the result of {@link #decodeBounds(Context, Image)} for this image.
+     * @param targetWidth  the width of the surface, or 0 if it isn't known yet.
+     * @param targetHeight the height of the surface, or 0 if it isn't known yet.
+     * @param inBitmap     an unused bitmap into which we should try to decode the image, or null.
+     * @return an image which is subsampled if the surface is smaller than the image, and which
+     * uses a smaller pixel config if we can get away with it.  This is inBitmap, if we could reuse it.
+     */
+    public static Bitmap createBitmap(Context context, Image image, BitmapFactory.Options bounds, int targetWidth, int targetHeight, Bitmap inBitmap) {
+        if (bounds == null) return null;
+        int sampleSize = getSampleSize(bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+        Bitmap.Config config = getConfig(bounds, targetWidth, targetHeight);
+        return createBitmap(context, image, bounds, sampleSize, config, inBitmap);
+    }
+
+    /**
+     * Decode the given image with the given subsampling and config.
+     *
+     * @param bounds   the result of {@link #decodeBounds(Context, Image)} for this image.
+     * @param inBitmap an unused bitmap into which we should try to decode the image, or null.
+     * @return the image. This is inBitmap, if we could reuse it.
+     */
+    public static Bitmap createBitmap(Context context, Image image, BitmapFactory.Options bounds, int sampleSize, Bitmap.Config config, Bitmap inBitmap) {
+        if (bounds == null) return null;
+        Bitmap result = null;
+        if (inBitmap != null) {
+            result = loadBitmapInto(context, image, sampleSize, config, inBitmap);
         }
-        // This is one of the default images bundled in the apk.
-        else {
-            final int imageResId = context.getResources().getIdentifier(image.getFilename(), "drawable",
-                    context.getClass().getPackage().getName());
-            // Load the image from the resource file.
-            Log.v(TAG, "Load default image " + imageResId);
-            result = loadBitmap(context, imageResId);
+        if (result == null) {
+            result = loadBitmap(context, image, sampleSize, config);
         }
+        if (result != null && isOpaque(bounds)) BitmapCompat.setHasAlpha(result, false);
         return result;
     }
 
-    private static Bitmap loadBitmap(Context context, String assetPath) {
-        return loadBitmap(context, assetPath, 0, BITMAP_INITIAL_SUB_SAMPLE, BITMAP_LOAD_RETRIES);
+    /**
+     * Read the size and type of the given image, without decoding it.
+     *
+     * @return options containing the outWidth, outHeight and outMimeType, or null if the image couldn't be read.
+     */
+    public static BitmapFactory.Options decodeBounds(Context context, Image image) {
+        BitmapFactory.Options options = BitmapCompat.createBitmapFactoryOptions(1);
+        options.inJustDecodeBounds = true;
+        try {
+            decode(context, image, options);
+        } catch (IOException e) {
+            Log.v(TAG, "Couldn't read image bounds: " + e.getMessage(), e);
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        return options;
     }
 
-    private static Bitmap loadBitmap(Context context, int resourceId) {
-        return loadBitmap(context, null, resourceId, BITMAP_INITIAL_SUB_SAMPLE, BITMAP_LOAD_RETRIES);
+    /**
+     * @return the largest power of two we can subsample the image by, and still have at least
+     * as many pixels as we'll display when we scale the image to fit in the surface.
+     */
+    public static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) return 1;
+        float scale = getScale(width, height, targetWidth, targetHeight);
+        int displayedWidth = (int) (width * scale);
+        int displayedHeight = (int) (height * scale);
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= displayedWidth && height / (sampleSize * 2) >= displayedHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 
-    private static Bitmap loadBitmap(Context context, String assetPath, int resourceId, int initialSubSample, int retries) {
-        int inSampleSize = BITMAP_LOAD_RETRIES - retries + initialSubSample;
-        BitmapFactory.Options options = BitmapCompat.createBitmapFactoryOptions(inSampleSize);
-        try {
-            Log.v(TAG, "Load image " + (assetPath == null ? "" + resourceId : assetPath) + ".  "
-                    + retries + " left.  Sample size = " + options.inSampleSize);
+    /**
+     * Images with transparency need ARGB_8888.  Opaque images which will be magnified
+     * also keep ARGB_8888, to avoid the banding of RGB_565 being magnified along with them.
+     * Opaque images which are displayed at or below their size use RGB_565, which uses half
+     * the memory.
+     */
+    public static Bitmap.Config getConfig(BitmapFactory.Options bounds, int targetWidth, int targetHeight) {
+        if (!isOpaque(bounds)) return Bitmap.Config.ARGB_8888;
+        if (targetWidth <= 0 || targetHeight <= 0) return Bitmap.Config.ARGB_8888;
+        float scale = getScale(bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+        return scale > 1 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+    }
 
-            if (assetPath != null) {
-                InputStream assetStream = context.getAssets().open(assetPath);
-                Bitmap result = BitmapFactory.decodeStream(assetStream);
-                assetStream.close();
-                return result;
-            }
-            else
-                return BitmapFactory.decodeResource(context.getResources(), resourceId, options);
-        } catch (OutOfMemoryError e) {
-            System.gc();
-            if (retries > 0)
-                return loadBitmap(context, assetPath, resourceId, initialSubSample, retries - 1);
+    /**
+     * @return the size of the given image once it's decoded with the given sample size.
+     */
+    public static int getDecodedSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+
+    private static float getScale(int width, int height, int targetWidth, int targetHeight) {
+        float scaleX = (float) targetWidth / width;
+        float scaleY = (float) targetHeight / height;
+        return Math.min(scaleX, scaleY);
+    }
+
+    /**
+     * @return true if the image has no transparency.
+     */
+    public static boolean isOpaque(BitmapFactory.Options bounds) {
+        return MIME_TYPE_JPEG.equals(bounds.outMimeType);
+    }
+
+    /**
+     * The caller chooses the sample size and config so that the image fits in memory.
+     * We don't try to recover from running out of memory.
+     */
+    private static Bitmap loadBitmap(Context context, Image image, int sampleSize, Bitmap.Config config) {
+        BitmapFactory.Options options = BitmapCompat.createBitmapFactoryOptions(sampleSize);
+        options.inPreferredConfig = config;
+        try {
+            Log.v(TAG, "Load image " + image.getFilename() + ".  Sample size = " + sampleSize + ", config = " + config);
+            return decode(context, image, options);
         } catch (IOException e) {
             Log.v(TAG, "Couldn't load image: " + e.getMessage(), e);
             return null;
         }
+    }
+
+    /**
+     * Like {@link #loadBitmap(Context, Image, int, Bitmap.Config)}, we don't try to recover from
+     * running out of memory: decoding into an existing bitmap needs less memory, not more.
+     */
+    private static Bitmap loadBitmapInto(Context context, Image image, int sampleSize, Bitmap.Config config, Bitmap inBitmap) {
+        BitmapFactory.Options options = BitmapCompat.createBitmapFactoryOptions(sampleSize);
+        options.inPreferredConfig = config;
+        BitmapCompat.setInBitmap(options, inBitmap);
+        try {
+            Log.v(TAG, "Load image " + image.getFilename() + " into an existing bitmap.  Sample size = "
+                    + sampleSize + ", config = " + config);
+            return decode(context, image, options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap didn't suit this image after all.  We'll decode without it.
+            Log.v(TAG, "Couldn't reuse bitmap: " + e.getMessage(), e);
+        } catch (IOException e) {
+            Log.v(TAG, "Couldn't load image into an existing bitmap: " + e.getMessage(), e);
+        }
         return null;
     }
 
+    private static Bitmap decode(Context context, Image image, BitmapFactory.Options options) throws IOException {
+        // This is one of the themed images, in the assets.
+        if (isAsset(image)) {
+            InputStream assetStream = context.getAssets().open(image.getFilename());
+            try {
+                return BitmapFactory.decodeStream(assetStream, null, options);
+            } finally {
+                assetStream.close();
+            }
+        }
+        // This is one of the default images bundled in the apk.
+        else {
+            return BitmapFactory.decodeResource(context.getResources(), getResourceId(context, image), options);
+        }
+    }
+
+    private static boolean isAsset(Image image) {
+        return image.getFilename().startsWith("themes");
+    }
+
+    private static int getResourceId(Context context, Image image) {
+        return context.getResources().getIdentifier(image.getFilename(), "drawable",
+                context.getClass().getPackage().getName());
+    }
+
 }
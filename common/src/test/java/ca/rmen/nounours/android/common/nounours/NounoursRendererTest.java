@@ -0,0 +1,370 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.rmen.nounours.android.common.nounours;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
+import ca.rmen.nounours.common.BuildConfig;
+import ca.rmen.nounours.android.common.settings.NounoursSettings;
+import ca.rmen.nounours.data.Image;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class NounoursRendererTest {
+
+    private static final int VIEW_WIDTH = 480;
+    private static final int VIEW_HEIGHT = 800;
+    private static final int WARM_UP_FRAME_COUNT = 300;
+    private static final int FRAME_COUNT = 1000;
+    private static final long FRAME_TIMEOUT_MS = 5000;
+    // Robolectric's choreographer allocates a little for each frame callback, which the baseline
+    // doesn't account for.  Scaling an image again, or allocating a bitmap, a canvas or a paint
+    // for each frame, costs much more than this.
+    private static final long FRAME_ALLOCATION_BUDGET_BYTES = 128;
+
+    @Test
+    public void testSteadyStateFrameAllocation() {
+        testSteadyStateFrameAllocationImpl(false, false);
+        testSteadyStateFrameAllocationImpl(true, false);
+        testSteadyStateFrameAllocationImpl(false, true);
+        testSteadyStateFrameAllocationImpl(true, true);
+    }
+
+    @Test
+    public void testScaledImageIsCentered() {
+        NounoursRenderer renderer = new NounoursRenderer(Long.MAX_VALUE);
+        RecordingCanvas canvas = new RecordingCanvas();
+        renderer.render(new TestSettings(false, false), "0", Bitmap.createBitmap(240, 200, Bitmap.Config.ARGB_8888), canvas, VIEW_WIDTH, VIEW_HEIGHT);
+        Assert.assertEquals(480, canvas.lastBitmapWidth);
+        Assert.assertEquals(400, canvas.lastBitmapHeight);
+        Assert.assertEquals(0, canvas.lastLeft, 0);
+        Assert.assertEquals(200, canvas.lastTop, 0);
+    }
+
+    @Test
+    public void testAtlasImageIsScaledFromItsArea() {
+        NounoursRenderer renderer = new NounoursRenderer(Long.MAX_VALUE);
+        RecordingCanvas canvas = new RecordingCanvas();
+        Bitmap atlas = Bitmap.createBitmap(720, 200, Bitmap.Config.ARGB_8888);
+        renderer.render(new TestSettings(false, false), "1", atlas, new Rect(240, 0, 480, 200), canvas, VIEW_WIDTH, VIEW_HEIGHT);
+        Assert.assertEquals(480, canvas.lastBitmapWidth);
+        Assert.assertEquals(400, canvas.lastBitmapHeight);
+        Assert.assertEquals(200, canvas.lastTop, 0);
+    }
+
+    /**
+     * Draw frames the way an animation does: each image goes through displayImage(), the render
+     * thread, the image lookup and the render cache, onto a locked canvas.  The images are already
+     * decoded, so once each image was scaled once, we're measuring the steady state.
+     */
+    private void testSteadyStateFrameAllocationImpl(boolean isGrayscale, boolean isImageDimmed) {
+        Context context = RuntimeEnvironment.application;
+        NounoursSettings settings = new TestSettings(isGrayscale, isImageDimmed);
+        Image[] images = new Image[]{
+                new Image("0", "0.png", null),
+                new Image("1", "1.png", null),
+                new Image("2", "2.png", null)};
+        Map<String, Bitmap> bitmaps = new HashMap<>();
+        for (Image image : images) {
+            bitmaps.put(image.getId(), Bitmap.createBitmap(320, 480, Bitmap.Config.ARGB_8888));
+        }
+        TestSurfaceHolder surfaceHolder = new TestSurfaceHolder();
+        AndroidNounours nounours = new AndroidNounours("TEST",
+                context,
+                new Handler(),
+                settings,
+                surfaceHolder,
+                new NounoursRenderer(Long.MAX_VALUE),
+                new DecodedImages(context, settings, bitmaps),
+                new EmptySoundHandler(),
+                new EmptyVibrateHandler(),
+                new EmptyThemeLoadListener());
+        HandlerThread harnessThread = new HandlerThread("harness");
+        harnessThread.start();
+        try {
+            surfaceHolder.create(VIEW_WIDTH, VIEW_HEIGHT);
+            // The first time we see each image, we scale it.  We also want the JIT to be done with this code.
+            for (int i = 0; i < WARM_UP_FRAME_COUNT; i++) {
+                displayAndWait(nounours, surfaceHolder, images[i % images.length]);
+            }
+
+            // The baseline: what it costs the test to hand a task to another thread and wait for it.
+            Handler harnessHandler = new Handler(harnessThread.getLooper());
+            final AtomicInteger harnessCount = new AtomicInteger();
+            Runnable harnessTask = new Runnable() {
+                @Override
+                public void run() {
+                    harnessCount.incrementAndGet();
+                }
+            };
+            for (int i = 0; i < WARM_UP_FRAME_COUNT; i++) {
+                postAndWait(harnessHandler, harnessTask, harnessCount);
+            }
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            // The render thread and the harness thread are running by now.
+            long[] threadIds = threadMXBean.getAllThreadIds();
+            long before = getAllocatedBytes(threadMXBean, threadIds);
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                postAndWait(harnessHandler, harnessTask, harnessCount);
+            }
+            long baseline = getAllocatedBytes(threadMXBean, threadIds) - before;
+
+            before = getAllocatedBytes(threadMXBean, threadIds);
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                displayAndWait(nounours, surfaceHolder, images[i % images.length]);
+            }
+            long allocated = getAllocatedBytes(threadMXBean, threadIds) - before;
+
+            long allocatedPerFrame = Math.max(0, allocated - baseline) / FRAME_COUNT;
+            Assert.assertTrue("Bytes allocated per frame, grayscale = " + isGrayscale + ", dimmed = " + isImageDimmed
+                            + ": " + allocatedPerFrame + " (" + allocated + " for " + FRAME_COUNT + " frames, baseline " + baseline + ")",
+                    allocatedPerFrame <= FRAME_ALLOCATION_BUDGET_BYTES);
+        } finally {
+            harnessThread.quit();
+            nounours.onDestroy();
+        }
+    }
+
+    private static void displayAndWait(AndroidNounours nounours, TestSurfaceHolder surfaceHolder, Image image) {
+        int frameCount = surfaceHolder.mImageFrameCount.get() + 1;
+        nounours.displayImage(image);
+        waitFor(surfaceHolder.mImageFrameCount, frameCount);
+    }
+
+    private static void postAndWait(Handler handler, Runnable task, AtomicInteger count) {
+        int expectedCount = count.get() + 1;
+        handler.post(task);
+        waitFor(count, expectedCount);
+    }
+
+    /**
+     * Wait until the given count is reached, running the tasks posted to the ui thread meanwhile:
+     * the frame callbacks may be scheduled there.
+     */
+    private static void waitFor(AtomicInteger count, int expectedCount) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FRAME_TIMEOUT_MS);
+        while (count.get() < expectedCount) {
+            ShadowLooper.runUiThreadTasks();
+            if (System.nanoTime() > deadline) Assert.fail("Timed out waiting for a frame");
+            Thread.yield();
+        }
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadMXBean, long[] threadIds) {
+        long result = 0;
+        for (long threadId : threadIds) {
+            // -1 for the threads which have ended.
+            result += Math.max(0, threadMXBean.getThreadAllocatedBytes(threadId));
+        }
+        return result;
+    }
+
+    /**
+     * Doesn't draw anything, so we only measure the allocations of the renderer.
+     */
+    private static class RecordingCanvas extends Canvas {
+        private int lastBitmapWidth;
+        private int lastBitmapHeight;
+        private float lastLeft;
+        private float lastTop;
+        private boolean isImageDrawn;
+
+        @Override
+        public void drawColor(int color) {
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+            lastBitmapWidth = bitmap.getWidth();
+            lastBitmapHeight = bitmap.getHeight();
+            lastLeft = left;
+            lastTop = top;
+            isImageDrawn = true;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            isImageDrawn = true;
+        }
+    }
+
+    /**
+     * A surface which is always ready to draw on.  Counts the frames in which an image was drawn.
+     */
+    private static class TestSurfaceHolder implements SurfaceHolder {
+        private final RecordingCanvas mCanvas = new RecordingCanvas();
+        private final Rect mSurfaceFrame = new Rect();
+        private final AtomicInteger mImageFrameCount = new AtomicInteger();
+        private Callback mCallback;
+
+        void create(int width, int height) {
+            mSurfaceFrame.set(0, 0, width, height);
+            mCallback.surfaceCreated(this);
+            mCallback.surfaceChanged(this, 0, width, height);
+        }
+
+        @Override
+        public void addCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void removeCallback(Callback callback) {
+            if (mCallback == callback) mCallback = null;
+        }
+
+        @Override
+        public boolean isCreating() {
+            return false;
+        }
+
+        @Override
+        public void setType(int type) {
+        }
+
+        @Override
+        public void setFixedSize(int width, int height) {
+        }
+
+        @Override
+        public void setSizeFromLayout() {
+        }
+
+        @Override
+        public void setFormat(int format) {
+        }
+
+        @Override
+        public void setKeepScreenOn(boolean screenOn) {
+        }
+
+        @Override
+        public Canvas lockCanvas() {
+            mCanvas.isImageDrawn = false;
+            return mCanvas;
+        }
+
+        @Override
+        public Canvas lockCanvas(Rect dirty) {
+            return lockCanvas();
+        }
+
+        @Override
+        public void unlockCanvasAndPost(Canvas canvas) {
+            if (mCanvas.isImageDrawn) mImageFrameCount.incrementAndGet();
+        }
+
+        @Override
+        public Rect getSurfaceFrame() {
+            return mSurfaceFrame;
+        }
+
+        @Override
+        public Surface getSurface() {
+            return null;
+        }
+    }
+
+    /**
+     * The images of the theme, already decoded.
+     */
+    private static class DecodedImages extends NounoursResourceCache {
+        private final Map<String, Bitmap> mBitmaps;
+
+        DecodedImages(Context context, NounoursSettings settings, Map<String, Bitmap> bitmaps) {
+            super(context, settings);
+            mBitmaps = bitmaps;
+        }
+
+        @Override
+        public Bitmap getDrawableImage(Context context, Image image, Rect outSrc) {
+            Bitmap bitmap = mBitmaps.get(image.getId());
+            outSrc.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            return bitmap;
+        }
+    }
+
+    private static class TestSettings implements NounoursSettings {
+        private final boolean mIsGrayscale;
+        private final boolean mIsImageDimmed;
+
+        TestSettings(boolean isGrayscale, boolean isImageDimmed) {
+            mIsGrayscale = isGrayscale;
+            mIsImageDimmed = isImageDimmed;
+        }
+
+        @Override
+        public boolean isSoundEnabled() {
+            return false;
+        }
+
+        @Override
+        public void setEnableSound(boolean enabled) {
+        }
+
+        @Override
+        public boolean isImageDimmed() {
+            return mIsImageDimmed;
+        }
+
+        @Override
+        public boolean isGrayscale() {
+            return mIsGrayscale;
+        }
+
+        @Override
+        public long getIdleTimeout() {
+            return 0;
+        }
+
+        @Override
+        public String getThemeId() {
+            return "0";
+        }
+
+        @Override
+        public int getBackgroundColor() {
+            return 0xff000000;
+        }
+    }
+}
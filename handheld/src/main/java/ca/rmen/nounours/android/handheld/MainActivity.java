@@ -26,8 +26,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.Sensor;
-import android.hardware.SensorManager;
+import android.content.res.Configuration;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -51,7 +50,7 @@ import ca.rmen.nounours.android.common.compat.ApiHelper;
 import ca.rmen.nounours.android.common.nounours.AndroidNounours;
 import ca.rmen.nounours.android.common.nounours.NounoursRenderer;
 import ca.rmen.nounours.android.common.nounours.ThemeLoadListener;
-import ca.rmen.nounours.android.common.nounours.cache.ImageCache;
+import ca.rmen.nounours.android.common.nounours.cache.MemoryBudget;
 import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
 import ca.rmen.nounours.android.common.nounours.cache.SoundCache;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
@@ -81,10 +80,8 @@ public class MainActivity extends Activity {
     private static final String FLAG_FULLSCREEN = "fullscreen";
 
     private AndroidNounours mNounours;
-    private SensorManager mSensorManager;
     private SensorListener mSensorListener;
-    private Sensor mAccelerometerSensor;
-    private Sensor mMagneticFieldSensor;
+    private TouchListener mTouchListener;
     private ImageButton mRecordButton;
     private ProgressDialog mProgressDialog;
     private FullScreenMode mFullScreenMode;
@@ -101,11 +98,6 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
-        boolean isOldEmulator = Build.DEVICE.startsWith("generic") && ApiHelper.getAPILevel() < 9;
-        if (!isOldEmulator) {
-            mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-        }
-
         mFullScreenMode = new FullScreenMode(this,
                 findViewById(R.id.corner1),
                 findViewById(R.id.corner2),
@@ -117,12 +109,12 @@ public class MainActivity extends Activity {
         final SurfaceView surfaceView = (SurfaceView) findViewById(R.id.surface_view);
         mRecordButton = (ImageButton) findViewById(R.id.btn_stop_recording);
         mRecordButton.setOnClickListener(mOnClickListener);
-        ImageCache imageCache = new ImageCache();
         SoundCache soundCache = new SoundCache();
         SoundHandler soundHandler = new SoundHandler(this, soundCache);
         VibrateHandler vibrateHandler = new VibrateHandler(this);
         NounoursSettings settings = SharedPreferenceSettings.getAppSettings(this);
-        NounoursResourceCache nounoursResources = new NounoursResourceCache(this, settings, imageCache, soundCache);
+        NounoursResourceCache nounoursResources = new NounoursResourceCache(this, settings, soundCache);
+        nounoursResources.setMaxImageCacheSize(MemoryBudget.getImageCacheBytes());
         NounoursRenderer renderer = new NounoursRenderer();
 
         mNounours = new AndroidNounours("APP",
@@ -135,17 +127,16 @@ public class MainActivity extends Activity {
                 soundHandler,
                 vibrateHandler,
                 mListener);
+        mNounours.initAsync();
 
         FlingDetector nounoursFlingDetector = new FlingDetector(mNounours);
-        if (mSensorManager != null) {
-            mAccelerometerSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-            mMagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        }
-
         final GestureDetector gestureDetector = new GestureDetector(getApplicationContext(), nounoursFlingDetector);
-        TouchListener touchListener = new TouchListener(mNounours, gestureDetector);
-        surfaceView.setOnTouchListener(touchListener);
-        mSensorListener = new SensorListener(mNounours, getApplicationContext());
+        mTouchListener = new TouchListener(mNounours, gestureDetector);
+        surfaceView.setOnTouchListener(mTouchListener);
+        boolean isOldEmulator = Build.DEVICE.startsWith("generic") && ApiHelper.getAPILevel() < 9;
+        if (!isOldEmulator) {
+            mSensorListener = new SensorListener(mNounours, getApplicationContext());
+        }
 
         if (ApiHelper.getAPILevel() < 11) {
             Toast.makeText(this, R.string.toast_remindMenuButton, Toast.LENGTH_LONG).show();
@@ -187,13 +178,21 @@ public class MainActivity extends Activity {
         mNounours.reloadSettings();
         mNounours.doPing(true);
         Log.v(TAG, "onResume end");
-        if (mSensorManager != null && mSensorListener != null) {
-            mSensorManager.registerListener(mSensorListener, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
-            mSensorManager.registerListener(mSensorListener, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
+        if (mSensorListener != null) {
+            mSensorListener.register();
         }
         registerReceiver(mBroadcastReceiver, new IntentFilter(AnimationSaveService.ACTION_SAVE_ANIMATION));
     }
 
+    /**
+     * The screen rotated: we handle orientation changes ourselves.
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (mSensorListener != null) mSensorListener.onDisplayChanged();
+    }
+
     /**
      * The application is paused. Stop listening for sensor events, stop pinging
      * for idleness, stop any sound.
@@ -205,8 +204,8 @@ public class MainActivity extends Activity {
         super.onPause();
         mNounours.doPing(false);
         mNounours.stopSound();
-        if (mSensorManager != null) {
-            mSensorManager.unregisterListener(mSensorListener);
+        if (mSensorListener != null) {
+            mSensorListener.unregister();
         }
         unregisterReceiver(mBroadcastReceiver);
     }
@@ -265,8 +264,11 @@ public class MainActivity extends Activity {
             }
             MenuItem recordingMenu = menu.findItem(R.id.menu_start_recording);
             if (recordingMenu != null) {
-                recordingMenu.setEnabled(FileUtil.isSdPresent() && !mNounours.getNounoursRecorder().isRecording());
+                recordingMenu.setEnabled(FileUtil.isSdPresent() && mNounours.isReady() && !mNounours.getNounoursRecorder().isRecording());
             }
+            // Nothing to show until Nounours has read its data files.
+            MenuItem helpMenu = menu.findItem(R.id.menu_help);
+            if (helpMenu != null) helpMenu.setEnabled(mNounours.isReady());
         }
         return super.onPrepareOptionsMenu(menu);
     }
@@ -289,7 +291,12 @@ public class MainActivity extends Activity {
         }
         // The user picked the random animation
         else if (menuItem.getItemId() == R.id.menu_random_animation) {
-            mNounours.doRandomAnimation();
+            int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+            try {
+                mNounours.doRandomAnimation();
+            } finally {
+                mNounours.setAnimationPriority(previousPriority);
+            }
             return true;
         } else if (menuItem.getItemId() == R.id.menu_start_recording) {
             startRecording();
@@ -308,7 +315,12 @@ public class MainActivity extends Activity {
             final Map<String, Animation> animations = mNounours.getAnimations();
             final Animation animation = animations.get("" + menuItem.getItemId());
             if (animation != null) {
-                mNounours.doAnimation(animation);
+                int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+                try {
+                    mNounours.doAnimation(animation);
+                } finally {
+                    mNounours.setAnimationPriority(previousPriority);
+                }
                 return true;
             }
             return super.onOptionsItemSelected(menuItem);
@@ -331,6 +343,8 @@ public class MainActivity extends Activity {
          */
     @Override
     protected void onDestroy() {
+        mTouchListener.cancel();
+        if (mSensorListener != null) mSensorListener.destroy();
         mNounours.onDestroy();
         super.onDestroy();
     }
@@ -370,7 +384,7 @@ public class MainActivity extends Activity {
         @Override
         public void onThemeLoadComplete() {
             Log.v(TAG, "onThemeLoadComplete");
-            mSensorListener.rereadOrientationFile(MainActivity.this);
+            if (mSensorListener != null) mSensorListener.rereadOrientationFile(MainActivity.this);
             mProgressDialog.dismiss();
             ActivityCompat.invalidateOptionsMenu(MainActivity.this);
         }
@@ -0,0 +1,58 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.handheld.compat;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.view.Display;
+
+@TargetApi(17)
+class Api17Helper {
+    private Api17Helper() {
+        // prevent instantiation
+    }
+
+    static Object registerRotationListener(Context context, final DisplayCompat.RotationListener listener) {
+        final DisplayManager displayManager = (DisplayManager) context.getApplicationContext().getSystemService(Context.DISPLAY_SERVICE);
+        DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+            @Override
+            public void onDisplayAdded(int displayId) {
+            }
+
+            @Override
+            public void onDisplayRemoved(int displayId) {
+            }
+
+            @Override
+            public void onDisplayChanged(int displayId) {
+                if (displayId != Display.DEFAULT_DISPLAY) return;
+                Display display = displayManager.getDisplay(displayId);
+                if (display != null) listener.onRotationChanged(display.getRotation());
+            }
+        };
+        displayManager.registerDisplayListener(displayListener, null);
+        return displayListener;
+    }
+
+    static void unregisterRotationListener(Context context, Object registration) {
+        DisplayManager displayManager = (DisplayManager) context.getApplicationContext().getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.unregisterDisplayListener((DisplayManager.DisplayListener) registration);
+    }
+}
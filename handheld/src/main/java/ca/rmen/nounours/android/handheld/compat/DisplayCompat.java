@@ -27,6 +27,13 @@ import ca.rmen.nounours.android.common.compat.ApiHelper;
 
 public class DisplayCompat {
 
+    public interface RotationListener {
+        /**
+         * @param rotation one of the {@link android.view.Surface} ROTATION_* constants.
+         */
+        void onRotationChanged(int rotation);
+    }
+
     public static int getRotation(Context context) {
         final WindowManager wm = (WindowManager) context
                 .getApplicationContext().getSystemService(
@@ -38,4 +45,23 @@ public class DisplayCompat {
         //noinspection deprecation
         return display.getOrientation();
     }
+
+    /**
+     * Before API 17, there's no way to be notified of rotation changes: this returns null and the
+     * listener is never called.
+     *
+     * @return an object to pass to {@link #unregisterRotationListener(Context, Object)}, or null.
+     */
+    public static Object registerRotationListener(Context context, RotationListener listener) {
+        if (ApiHelper.getAPILevel() >= 17) {
+            return Api17Helper.registerRotationListener(context, listener);
+        }
+        return null;
+    }
+
+    public static void unregisterRotationListener(Context context, Object registration) {
+        if (registration != null) {
+            Api17Helper.unregisterRotationListener(context, registration);
+        }
+    }
 }
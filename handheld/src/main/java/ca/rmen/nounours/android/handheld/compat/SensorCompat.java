@@ -0,0 +1,68 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.handheld.compat;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import ca.rmen.nounours.android.common.compat.ApiHelper;
+
+public class SensorCompat {
+
+    private SensorCompat() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return the rotation vector sensor, or null if the device doesn't have one.
+     */
+    public static Sensor getRotationVectorSensor(SensorManager sensorManager) {
+        if (ApiHelper.getAPILevel() >= 9) {
+            return Api9Helper.getRotationVectorSensor(sensorManager);
+        }
+        return null;
+    }
+
+    /**
+     * Register the listener for the given sensor, with events delivered on the given handler's thread.
+     * If the device can batch the events of this sensor in a hardware FIFO, they may be delayed
+     * by up to maxReportLatencyUs, to let the application processor sleep in between.
+     * Otherwise, maxReportLatencyUs is ignored.
+     */
+    public static void registerListener(SensorManager sensorManager, SensorEventListener listener, Sensor sensor, int rate, int maxReportLatencyUs, Handler handler) {
+        if (sensor == null) return;
+        if (maxReportLatencyUs > 0 && ApiHelper.getAPILevel() >= 19 && Api19Helper.hasFifo(sensor)) {
+            Api19Helper.registerListener(sensorManager, listener, sensor, rate, maxReportLatencyUs, handler);
+        } else {
+            sensorManager.registerListener(listener, sensor, rate, handler);
+        }
+    }
+
+    /**
+     * Only call this for values coming from a sensor returned by {@link #getRotationVectorSensor(SensorManager)}.
+     *
+     * @param rotationVector the first three or four values of a rotation vector event. Some devices
+     *                       fail if given more than four values.
+     */
+    public static void getRotationMatrixFromVector(float[] rotationMatrix, float[] rotationVector) {
+        Api9Helper.getRotationMatrixFromVector(rotationMatrix, rotationVector);
+    }
+}
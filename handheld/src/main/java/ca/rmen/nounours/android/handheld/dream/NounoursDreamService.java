@@ -20,8 +20,7 @@ package ca.rmen.nounours.android.handheld.dream;
 
 
 import android.annotation.TargetApi;
-import android.hardware.Sensor;
-import android.hardware.SensorManager;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
 import android.service.dreams.DreamService;
@@ -33,9 +32,10 @@ import ca.rmen.nounours.R;
 import ca.rmen.nounours.android.common.nounours.AndroidNounours;
 import ca.rmen.nounours.android.common.nounours.EmptySoundHandler;
 import ca.rmen.nounours.android.common.nounours.EmptyVibrateHandler;
+import ca.rmen.nounours.android.common.nounours.IdleListener;
 import ca.rmen.nounours.android.common.nounours.NounoursRenderer;
 import ca.rmen.nounours.android.common.nounours.ThemeLoadListener;
-import ca.rmen.nounours.android.common.nounours.cache.ImageCache;
+import ca.rmen.nounours.android.common.nounours.cache.MemoryBudget;
 import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
 import ca.rmen.nounours.android.handheld.nounours.FlingDetector;
@@ -47,9 +47,6 @@ import ca.rmen.nounours.android.handheld.settings.SharedPreferenceSettings;
 public class NounoursDreamService extends DreamService {
     private AndroidNounours mNounours;
     private SensorListener mSensorListener;
-    private SensorManager mSensorManager;
-    private Sensor mAccelerometerSensor;
-    private Sensor mMagneticFieldSensor;
     private TouchListener mTouchListener;
 
     @Override
@@ -61,27 +58,33 @@ public class NounoursDreamService extends DreamService {
         SurfaceView surfaceView = (SurfaceView) findViewById(R.id.surface_view);
         NounoursSettings settings = SharedPreferenceSettings.getDreamSettings(this);
         settings.setEnableSound(false);
+        // The daydream may be running alongside the wallpaper: use a smaller share of the heap.
+        NounoursResourceCache nounoursResources = new NounoursResourceCache(this, settings);
+        nounoursResources.setMaxImageCacheSize(MemoryBudget.getImageCacheBytes() / 2);
+        // Pack the theme into a few bitmaps: less overhead when several engines are running.
+        nounoursResources.setAtlasEnabled(true);
         mNounours = new AndroidNounours("DREAM",
                 this,
                 new Handler(),
                 settings,
                 surfaceView.getHolder(),
                 new NounoursRenderer(),
-                new NounoursResourceCache(this, settings, new ImageCache()),
+                nounoursResources,
                 new EmptySoundHandler(),
                 new EmptyVibrateHandler(),
                 mListener);
+        mNounours.setIdleListener(mIdleListener);
+        mNounours.initAsync();
         FlingDetector nounoursFlingDetector = new FlingDetector(mNounours);
         final GestureDetector gestureDetector = new GestureDetector(this, nounoursFlingDetector);
-        mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-        mAccelerometerSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        mMagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        mSensorListener = new SensorListener(mNounours, this);
+        mSensorListener = new SensorListener(mNounours, this, true);
         mTouchListener = new TouchListener(mNounours, gestureDetector);
     }
 
     @Override
     public void onDetachedFromWindow() {
+        mTouchListener.cancel();
+        mSensorListener.destroy();
         mNounours.onDestroy();
         super.onDetachedFromWindow();
     }
@@ -90,10 +93,7 @@ public class NounoursDreamService extends DreamService {
     public void onDreamingStarted() {
         super.onDreamingStarted();
         if(!mNounours.isLoading()) {
-            if (mSensorManager != null) {
-                mSensorManager.registerListener(mSensorListener, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                mSensorManager.registerListener(mSensorListener, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
-            }
+            mSensorListener.register();
         }
         mNounours.reloadSettings();
         mNounours.doPing(true);
@@ -101,13 +101,17 @@ public class NounoursDreamService extends DreamService {
 
     @Override
     public void onDreamingStopped() {
-        if (mSensorManager != null) {
-            mSensorManager.unregisterListener(mSensorListener);
-        }
+        mSensorListener.unregister();
         mNounours.doPing(false);
         super.onDreamingStopped();
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mSensorListener.onDisplayChanged();
+    }
+
     @Override
     public boolean dispatchTouchEvent(MotionEvent event) {
         mTouchListener.onTouch(null, event);
@@ -115,6 +119,20 @@ public class NounoursDreamService extends DreamService {
         return false;
     }
 
+    private final IdleListener mIdleListener = new IdleListener() {
+        @Override
+        public void onIdle() {
+            mSensorListener.unregister();
+        }
+
+        @Override
+        public void onActive() {
+            if (isDreaming()) {
+                mSensorListener.register();
+            }
+        }
+    };
+
     private final ThemeLoadListener mListener = new ThemeLoadListener() {
         @Override
         public void onThemeLoadStart(int max, String message) {
@@ -126,11 +144,9 @@ public class NounoursDreamService extends DreamService {
 
         @Override
         public void onThemeLoadComplete() {
-            if (mSensorManager != null) {
-                mSensorListener.rereadOrientationFile(getApplicationContext());
-                mSensorManager.registerListener(mSensorListener, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                mSensorManager.registerListener(mSensorListener, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
-            }
+            mSensorListener.rereadOrientationFile(getApplicationContext());
+            // The load may complete after the dream stopped, or went idle.
+            if (isDreaming() && !mNounours.isIdle()) mSensorListener.register();
         }
     };
 }
@@ -21,8 +21,6 @@ package ca.rmen.nounours.android.handheld.lwp;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.hardware.Sensor;
-import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Handler;
 import android.preference.PreferenceManager;
@@ -35,9 +33,10 @@ import ca.rmen.nounours.android.common.compat.ApiHelper;
 import ca.rmen.nounours.android.common.nounours.AndroidNounours;
 import ca.rmen.nounours.android.common.nounours.EmptySoundHandler;
 import ca.rmen.nounours.android.common.nounours.EmptyVibrateHandler;
+import ca.rmen.nounours.android.common.nounours.IdleListener;
 import ca.rmen.nounours.android.common.nounours.NounoursRenderer;
 import ca.rmen.nounours.android.common.nounours.ThemeLoadListener;
-import ca.rmen.nounours.android.common.nounours.cache.ImageCache;
+import ca.rmen.nounours.android.common.nounours.cache.MemoryBudget;
 import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
 import ca.rmen.nounours.android.common.settings.NounoursSettings;
 import ca.rmen.nounours.android.handheld.nounours.FlingDetector;
@@ -58,9 +57,6 @@ public class LWPService extends WallpaperService {
         private boolean mWasPaused = false;
         private AndroidNounours mNounours = null;
         private SensorListener mSensorListener;
-        private SensorManager mSensorManager;
-        private Sensor mAccelerometerSensor;
-        private Sensor mMagneticFieldSensor;
         private TouchListener mTouchListener;
 
         @Override
@@ -70,24 +66,28 @@ public class LWPService extends WallpaperService {
             Context context = getApplicationContext();
             NounoursSettings settings = SharedPreferenceSettings.getLwpSettings(context);
             settings.setEnableSound(false);
+            // The wallpaper may be running alongside the app or the daydream: use a smaller share of the heap.
+            NounoursResourceCache nounoursResources = new NounoursResourceCache(context, settings);
+            nounoursResources.setMaxImageCacheSize(MemoryBudget.getImageCacheBytes() / 2);
+            // Pack the theme into a few bitmaps: less overhead when several engines are running.
+            nounoursResources.setAtlasEnabled(true);
             mNounours = new AndroidNounours("LWP",
                     context,
                     new Handler(),
                     settings,
                     getSurfaceHolder(),
                     new NounoursRenderer(),
-                    new NounoursResourceCache(context, settings, new ImageCache()),
+                    nounoursResources,
                     new EmptySoundHandler(),
                     new EmptyVibrateHandler(),
                     mListener);
+            mNounours.setIdleListener(mIdleListener);
+            mNounours.initAsync();
             FlingDetector nounoursFlingDetector = new FlingDetector(mNounours);
             final GestureDetector gestureDetector = new GestureDetector(context, nounoursFlingDetector);
             boolean isOldEmulator = Build.DEVICE.startsWith("generic") && ApiHelper.getAPILevel() < 9;
             if (!isOldEmulator) {
-                mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-                mAccelerometerSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-                mMagneticFieldSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-                mSensorListener = new SensorListener(mNounours, context);
+                mSensorListener = new SensorListener(mNounours, context, true);
             }
             mTouchListener = new TouchListener(mNounours, gestureDetector);
             final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(LWPService.this);
@@ -97,6 +97,8 @@ public class LWPService extends WallpaperService {
         @Override
         public void onDestroy() {
             super.onDestroy();
+            mTouchListener.cancel();
+            if (mSensorListener != null) mSensorListener.destroy();
             mNounours.onDestroy();
         }
 
@@ -105,9 +107,8 @@ public class LWPService extends WallpaperService {
         public void onVisibilityChanged(boolean visible) {
             if (visible) {
                 if(!mNounours.isLoading()) {
-                    if (mSensorManager != null) {
-                        mSensorManager.registerListener(mSensorListener, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                        mSensorManager.registerListener(mSensorListener, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
+                    if (mSensorListener != null) {
+                        mSensorListener.register();
                     }
                 }
                 mNounours.reloadSettings();
@@ -118,8 +119,8 @@ public class LWPService extends WallpaperService {
                 mWasPaused = false;
 
             } else {
-                if (mSensorManager != null) {
-                    mSensorManager.unregisterListener(mSensorListener);
+                if (mSensorListener != null) {
+                    mSensorListener.unregister();
                 }
                 mWasPaused = true;
                 mNounours.doPing(false);
@@ -129,6 +130,7 @@ public class LWPService extends WallpaperService {
         @Override
         public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             super.onSurfaceChanged(holder, format, width, height);
+            if (mSensorListener != null) mSensorListener.onDisplayChanged();
             mNounours.redraw();
         }
 
@@ -147,6 +149,22 @@ public class LWPService extends WallpaperService {
             if (mNounours != null) mNounours.reloadSettings();
         }
 
+        private final IdleListener mIdleListener = new IdleListener() {
+            @Override
+            public void onIdle() {
+                if (mSensorListener != null) {
+                    mSensorListener.unregister();
+                }
+            }
+
+            @Override
+            public void onActive() {
+                if (mSensorListener != null && isVisible()) {
+                    mSensorListener.register();
+                }
+            }
+        };
+
         private final ThemeLoadListener mListener = new ThemeLoadListener() {
             @Override
             public void onThemeLoadStart(int max, String message) {
@@ -158,10 +176,10 @@ public class LWPService extends WallpaperService {
 
             @Override
             public void onThemeLoadComplete() {
-                if (mSensorManager != null) {
+                if (mSensorListener != null) {
                     mSensorListener.rereadOrientationFile(getApplicationContext());
-                    mSensorManager.registerListener(mSensorListener, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                    mSensorManager.registerListener(mSensorListener, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
+                    // The load may complete after we were hidden, or went idle.
+                    if (isVisible() && !mNounours.isIdle()) mSensorListener.register();
                 }
             }
         };
@@ -24,22 +24,37 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 
-import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.android.common.compat.ChoreographerCompat;
+import ca.rmen.nounours.android.common.nounours.AndroidNounours;
 
 /**
  * Manages touch events for Nounours on the Android device.
+ * Moves are coalesced: Nounours follows the path of the finger once per frame, instead of once
+ * per touch event.  The animations the touch events start have the tap priority.
  *
  * @author Carmen Alvarez
  */
 public class TouchListener implements OnTouchListener {
 
     private final GestureDetector mGestureDetector;
-    private final Nounours mNounours;
+    private final AndroidNounours mNounours;
+    // Only used for very fast moves: the touch events are usually delivered once per frame too.
+    private static final int MAX_PENDING_MOVES = 16;
 
-    public TouchListener(Nounours nounours,
+    private final ChoreographerCompat mChoreographer;
+    // The positions of the finger which Nounours hasn't followed yet, oldest first.
+    private final int[] mPendingMovesX = new int[MAX_PENDING_MOVES];
+    private final int[] mPendingMovesY = new int[MAX_PENDING_MOVES];
+    private int mPendingMoveCount;
+
+    /**
+     * Must be created on the thread which receives the touch events.
+     */
+    public TouchListener(AndroidNounours nounours,
                          GestureDetector gestureDetector) {
         mNounours = nounours;
         mGestureDetector = gestureDetector;
+        mChoreographer = new ChoreographerCompat(mFrameCallback);
     }
 
     /**
@@ -55,12 +70,72 @@ public class TouchListener implements OnTouchListener {
             mGestureDetector.onTouchEvent(event);
         }
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
-            mNounours.onPress((int) event.getX(), (int) event.getY());
+            flushPendingMove();
+            int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+            try {
+                mNounours.onPress((int) event.getX(), (int) event.getY());
+            } finally {
+                mNounours.setAnimationPriority(previousPriority);
+            }
         } else if (event.getAction() == MotionEvent.ACTION_UP) {
-            mNounours.onRelease();
+            flushPendingMove();
+            int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+            try {
+                mNounours.onRelease();
+            } finally {
+                mNounours.setAnimationPriority(previousPriority);
+            }
         } else if (event.getAction() == MotionEvent.ACTION_MOVE) {
-            mNounours.onMove((int) event.getX(), (int) event.getY());
+            if (mPendingMoveCount == 0) mChoreographer.postFrameCallback();
+            // The event may hold the samples since the previous event, older than its current position.
+            int historySize = event.getHistorySize();
+            for (int i = 0; i < historySize; i++) {
+                addPendingMove((int) event.getHistoricalX(i), (int) event.getHistoricalY(i));
+            }
+            addPendingMove((int) event.getX(), (int) event.getY());
         }
         return true;
     }
+
+    /**
+     * Forget the moves Nounours hasn't followed yet.  Call this when Nounours is destroyed.
+     */
+    public void cancel() {
+        mChoreographer.removeFrameCallback();
+        mPendingMoveCount = 0;
+    }
+
+    private void addPendingMove(int x, int y) {
+        // If we have too many, the latest position replaces the one before it.
+        int i = Math.min(mPendingMoveCount, MAX_PENDING_MOVES - 1);
+        mPendingMovesX[i] = x;
+        mPendingMovesY[i] = y;
+        mPendingMoveCount = i + 1;
+    }
+
+    /**
+     * Follow the pending moves now, so Nounours sees them before a press or release.
+     * Nounours may display an image for each of them: only the last one is drawn.
+     */
+    private void flushPendingMove() {
+        if (mPendingMoveCount == 0) return;
+        mChoreographer.removeFrameCallback();
+        int pendingMoveCount = mPendingMoveCount;
+        mPendingMoveCount = 0;
+        int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+        try {
+            for (int i = 0; i < pendingMoveCount; i++) {
+                mNounours.onMove(mPendingMovesX[i], mPendingMovesY[i]);
+            }
+        } finally {
+            mNounours.setAnimationPriority(previousPriority);
+        }
+    }
+
+    private final ChoreographerCompat.FrameCallback mFrameCallback = new ChoreographerCompat.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushPendingMove();
+        }
+    };
 }
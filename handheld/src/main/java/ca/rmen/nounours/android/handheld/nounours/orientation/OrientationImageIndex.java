@@ -0,0 +1,112 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.handheld.nounours.orientation;
+
+import java.util.List;
+
+/**
+ * Finds the orientation image for a given yaw, pitch and roll, without scanning all the
+ * orientation images.
+ *
+ * Each axis is divided into cells of {@link #CELL_SIZE_DEG} degrees.  For each cell of each axis,
+ * a bit set tells which orientation images have a range overlapping that cell.  A lookup
+ * intersects the three bit sets of the cells containing the given angles, and checks the exact
+ * ranges of the few remaining candidates only.
+ *
+ * When the ranges of several orientation images overlap, the image which comes first in the list
+ * given to the constructor (the first line in the orientation file) wins.
+ *
+ * Instances are immutable, and lookups don't allocate.
+ */
+final class OrientationImageIndex {
+
+    private static final float MIN_ANGLE_DEG = -180;
+    private static final float MAX_ANGLE_DEG = 180;
+    private static final int CELL_SIZE_DEG = 10;
+    private static final int CELL_COUNT = (int) ((MAX_ANGLE_DEG - MIN_ANGLE_DEG) / CELL_SIZE_DEG);
+
+    private final OrientationImage[] mOrientationImages;
+    // [cell][word]: bit i of word w is set if orientation image 64 * w + i overlaps the cell.
+    private final long[][] mYawCells;
+    private final long[][] mPitchCells;
+    private final long[][] mRollCells;
+    private final int mWordCount;
+
+    /**
+     * @param orientationImages the orientation images, by decreasing priority.
+     */
+    OrientationImageIndex(List<OrientationImage> orientationImages) {
+        mOrientationImages = orientationImages.toArray(new OrientationImage[orientationImages.size()]);
+        mWordCount = (mOrientationImages.length + 63) / 64;
+        mYawCells = new long[CELL_COUNT][mWordCount];
+        mPitchCells = new long[CELL_COUNT][mWordCount];
+        mRollCells = new long[CELL_COUNT][mWordCount];
+        for (int i = 0; i < mOrientationImages.length; i++) {
+            OrientationImage orientationImage = mOrientationImages[i];
+            addRange(mYawCells, i, orientationImage.minYaw, orientationImage.maxYaw);
+            addRange(mPitchCells, i, orientationImage.minPitch, orientationImage.maxPitch);
+            addRange(mRollCells, i, orientationImage.minRoll, orientationImage.maxRoll);
+        }
+    }
+
+    /**
+     * @return the orientation image with the highest priority whose ranges contain the given angles,
+     * or null if there is none.
+     */
+    OrientationImage find(float yaw, float pitch, float roll) {
+        long[] yawCell = mYawCells[getCell(yaw)];
+        long[] pitchCell = mPitchCells[getCell(pitch)];
+        long[] rollCell = mRollCells[getCell(roll)];
+        for (int word = 0; word < mWordCount; word++) {
+            long candidates = yawCell[word] & pitchCell[word] & rollCell[word];
+            while (candidates != 0) {
+                int bit = Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                OrientationImage orientationImage = mOrientationImages[word * 64 + bit];
+                if (yaw >= orientationImage.minYaw
+                        && yaw <= orientationImage.maxYaw
+                        && pitch >= orientationImage.minPitch
+                        && pitch <= orientationImage.maxPitch
+                        && roll >= orientationImage.minRoll
+                        && roll <= orientationImage.maxRoll) {
+                    return orientationImage;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void addRange(long[][] cells, int index, float min, float max) {
+        if (min > max) return;
+        int minCell = getCell(min);
+        int maxCell = getCell(max);
+        for (int cell = minCell; cell <= maxCell; cell++) {
+            cells[cell][index / 64] |= 1L << (index % 64);
+        }
+    }
+
+    private static int getCell(float angle) {
+        // Angles outside of the supported range go in the first or last cell:
+        // the exact checks in find() still apply.
+        int cell = (int) Math.floor((angle - MIN_ANGLE_DEG) / CELL_SIZE_DEG);
+        if (cell < 0) return 0;
+        if (cell >= CELL_COUNT) return CELL_COUNT - 1;
+        return cell;
+    }
+}
@@ -25,51 +25,178 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashSet;
-import java.util.Set;
 
 import ca.rmen.nounours.android.common.Constants;
 import ca.rmen.nounours.NounoursRecorder;
 import ca.rmen.nounours.android.handheld.compat.DisplayCompat;
+import ca.rmen.nounours.android.handheld.compat.SensorCompat;
 import ca.rmen.nounours.data.Image;
 import ca.rmen.nounours.android.common.nounours.AndroidNounours;
+import ca.rmen.nounours.android.common.nounours.ThemeBundle;
 
 /**
  * Manages shaking and tilting events for Nounours on the Android device.
  *
+ * Nothing is allocated per sensor event: all the buffers are preallocated, and the display rotation
+ * is cached.  If the device has a rotation vector sensor, we use it for the orientation instead of
+ * combining the accelerometer and the magnetic field ourselves.
+ *
+ * The sensor events are delivered and analyzed on a dedicated thread, which lives until
+ * {@link #destroy()}.  Only the resulting shake or tilt image is posted to the main thread.
+ *
  * @author Carmen Alvarez
  */
 public class SensorListener implements SensorEventListener {
     private static final String TAG = Constants.TAG + SensorListener.class.getSimpleName();
-
-    private float mXAccel = Float.MAX_VALUE;
-    private float mYAccel = Float.MAX_VALUE;
-    private float mZAccel = Float.MAX_VALUE;
+    // Don't analyze the orientation more often than this.  In the time base of SensorEvent.timestamp.
+    private static final long ORIENTATION_ANALYSIS_INTERVAL_NS = 500 * 1000000L;
+    // When batching is enabled, the orientation events may be delayed by up to this, since we
+    // don't analyze them more often anyway.  The accelerometer is never batched, so shakes are
+    // detected right away.
+    private static final int ORIENTATION_MAX_REPORT_LATENCY_US = 500 * 1000;
+
+    // Only used on the sensor thread.
+    private final ShakeDetector mShakeDetector = new ShakeDetector();
+    // Only used on the main thread.
     private boolean mIsTiltImage = false;
-    private final Set<OrientationImage> mOrientationImages = new HashSet<>();
+    // Set on the sensor thread, read on the main thread.
+    private volatile OrientationImage mTiltOrientationImage = null;
+    // Only used on the sensor thread: whether the last analysis found a tilt image.
+    private boolean mIsTiltImagePending = false;
+    // Built in the background when the theme loads.  null if the theme has no orientation images.
+    private volatile OrientationImageIndex mOrientationImageIndex = null;
 
     private AndroidNounours mNounours = null;
     private final Context mContext;
-
-    private float[] mLastAcceleration = null;
-    private float[] mLastMagneticField = null;
+    private final SensorManager mSensorManager;
+    private final Sensor mAccelerometerSensor;
+    private final Sensor mMagneticFieldSensor;
+    // null if the device doesn't have one.
+    private final Sensor mRotationVectorSensor;
+    private final boolean mIsBatchingEnabled;
+    private final Handler mMainHandler;
+    // Created by the first register(), quit by destroy().  Only used on the main thread.
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+    // Only used on the main thread.  A shake or tilt posted by an event which arrived just before
+    // unregister() is ignored.
+    private boolean mIsRegistered;
+    private Object mRotationListenerRegistration;
+    private volatile int mDisplayRotation;
+
+    private final float[] mLastAcceleration = new float[3];
+    private boolean mHasAcceleration = false;
+    private final float[] mLastMagneticField = new float[]{0, 0, -1};
+    // Rotation vector events have three, four or five values, depending on the device.
+    private final float[] mRotationVector3 = new float[3];
+    private final float[] mRotationVector4 = new float[4];
+    private float[] mLastRotationVector = null;
+    private final float[] mRotationMatrix = new float[16];
+    private final float[] mRemappedRotationMatrix = new float[16];
+    private final float[] mOrientationValues = new float[3];
     private long mLastAnalysisTimestamp = 0;
 
     public SensorListener(AndroidNounours nounours,
                           Context context) {
+        this(nounours, context, false);
+    }
+
+    /**
+     * @param isBatchingEnabled if true, the orientation sensor events may be batched in a hardware FIFO
+     *                          (API 19+, on devices supporting it), to save battery.
+     */
+    public SensorListener(AndroidNounours nounours,
+                          Context context,
+                          boolean isBatchingEnabled) {
         mNounours = nounours;
         mContext = context;
-        mLastMagneticField = new float[]{0, 0, -1};
+        mIsBatchingEnabled = isBatchingEnabled;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometerSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mRotationVectorSensor = SensorCompat.getRotationVectorSensor(mSensorManager);
+        mMagneticFieldSensor = mRotationVectorSensor == null ? mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD) : null;
+        mDisplayRotation = DisplayCompat.getRotation(context);
+    }
+
+    /**
+     * Start listening to the sensors, and to display rotation changes.  Must be called on the main
+     * thread.  Calling this when already registered has no effect.
+     */
+    public void register() {
+        Log.v(TAG, "register");
+        if (!mIsRegistered) {
+            mIsRegistered = true;
+            mIsTiltImagePending = mIsTiltImage;
+            mShakeDetector.reset();
+            if (mSensorThread == null) {
+                mSensorThread = new HandlerThread(TAG);
+                mSensorThread.start();
+                mSensorHandler = new Handler(mSensorThread.getLooper());
+            }
+            int maxReportLatencyUs = mIsBatchingEnabled ? ORIENTATION_MAX_REPORT_LATENCY_US : 0;
+            // The shake detector needs several samples per shake.
+            SensorCompat.registerListener(mSensorManager, this, mAccelerometerSensor, SensorManager.SENSOR_DELAY_UI, 0, mSensorHandler);
+            if (mRotationVectorSensor != null) {
+                SensorCompat.registerListener(mSensorManager, this, mRotationVectorSensor, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs, mSensorHandler);
+            } else {
+                SensorCompat.registerListener(mSensorManager, this, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs, mSensorHandler);
+            }
+        }
+        // The rotation may have changed while we weren't listening.
+        mDisplayRotation = DisplayCompat.getRotation(mContext);
+        if (mRotationListenerRegistration == null) {
+            mRotationListenerRegistration = DisplayCompat.registerRotationListener(mContext, mRotationListener);
+        }
+    }
+
+    /**
+     * Stop listening to the sensors.  Must be called on the main thread.
+     */
+    public void unregister() {
+        Log.v(TAG, "unregister");
+        mIsRegistered = false;
+        mSensorManager.unregisterListener(this);
+        mMainHandler.removeCallbacks(mShakeRunnable);
+        mMainHandler.removeCallbacks(mTiltRunnable);
+        DisplayCompat.unregisterRotationListener(mContext, mRotationListenerRegistration);
+        mRotationListenerRegistration = null;
+    }
+
+    /**
+     * Stop listening to the sensors, and stop the sensor thread.  Call this when Nounours is
+     * destroyed.  Must be called on the main thread.
+     */
+    public void destroy() {
+        Log.v(TAG, "destroy");
+        unregister();
+        if (mSensorThread != null) {
+            mSensorThread.quit();
+            mSensorThread = null;
+            mSensorHandler = null;
+        }
+    }
+
+    /**
+     * Read the rotation of the display again.  Before API 17, we can't listen to the rotation
+     * changes: call this when the surface or the configuration changes.  Must be called on the
+     * main thread.
+     */
+    public void onDisplayChanged() {
+        mDisplayRotation = DisplayCompat.getRotation(mContext);
     }
 
     public void rereadOrientationFile(final Context context) {
         Log.v(TAG, "rereadOrientationFile");
-        mOrientationImages.clear();
+        mOrientationImageIndex = null;
         new AsyncTask<Void, Void, Void>() {
 
             @Override
@@ -80,7 +207,7 @@ public class SensorListener implements SensorEventListener {
                     try {
                         orientationImageReader = new OrientationImageReader(
                                 orientationImageFile);
-                        mOrientationImages.addAll(orientationImageReader
+                        mOrientationImageIndex = new OrientationImageIndex(orientationImageReader
                                 .getOrientationImages());
                     } catch (IOException e) {
                         Log.v(TAG, e.getMessage(), e);
@@ -100,7 +227,7 @@ public class SensorListener implements SensorEventListener {
      */
     private InputStream getOrientationFile(String themeId, Context context) {
         try {
-            return context.getAssets().open("themes/" + themeId + "/orientationimage2.csv");
+            return ThemeBundle.openAsset(context, "themes/" + themeId + "/orientationimage2.csv");
         } catch (IOException e) {
             Log.v(TAG, "Couldn't open orientation file: " + e.getMessage(), e);
         }
@@ -112,6 +239,7 @@ public class SensorListener implements SensorEventListener {
     /**
      * Listen for accelerometer events, to know if we should shake. Listen for
      * orientation events to know if we should show a tilt image.
+     * Called on the sensor thread.
      *
      * @see android.hardware.SensorEventListener#onSensorChanged(SensorEvent)
      */
@@ -119,9 +247,7 @@ public class SensorListener implements SensorEventListener {
     public void onSensorChanged(SensorEvent event) {
         // Don't do anything if we're shaking.
         if (mNounours.isShaking() || mNounours.isLoading()) {
-            mXAccel = Float.MAX_VALUE;
-            mYAccel = Float.MAX_VALUE;
-            mZAccel = Float.MAX_VALUE;
+            mShakeDetector.reset();
             return;
         }
         int sensorType = event.sensor.getType();
@@ -130,8 +256,10 @@ public class SensorListener implements SensorEventListener {
             onAccelerationChanged(event);
         } else if (sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
             onMagneticFieldChanged(event);
+        } else if (sensorType == Sensor.TYPE_ROTATION_VECTOR) {
+            onRotationVectorChanged(event);
         }
-        onOrientationChanged();
+        onOrientationChanged(event.timestamp);
     }
 
     /**
@@ -139,99 +267,67 @@ public class SensorListener implements SensorEventListener {
      */
     private void onAccelerationChanged(SensorEvent event) {
         float[] values = event.values;
-        float eventAccelX = values[0];
-        float eventAccelY = values[1];
-        float eventAccelZ = values[2];
-        if (mXAccel != Float.MAX_VALUE) {
-            final float netAccelX = Math.abs(mXAccel - eventAccelX);
-            final float netAccelY = Math.abs(mYAccel - eventAccelY);
-            final float netAccelZ = Math.abs(mZAccel - eventAccelZ);
-
-            final float shakeFactor = mNounours.getMinShakeSpeed();
-            if (netAccelX > shakeFactor || netAccelY > shakeFactor
-                    || netAccelZ > shakeFactor) {
-                mNounours.onShake();
-            }
+        if (mShakeDetector.onAcceleration(values[0], values[1], values[2], event.timestamp, mNounours.getMinShakeSpeed())) {
+            // Several shakes detected before the main thread handles the first one count as one.
+            mMainHandler.removeCallbacks(mShakeRunnable);
+            mMainHandler.post(mShakeRunnable);
         }
-        // For some reason, the first reading when the app starts, will give
-        // some values of 0.0, which shouldn't be possible.
-        if (eventAccelX != 0.0
-                && eventAccelY != 0.0
-                && eventAccelZ != 0.0) {
-            mXAccel = eventAccelX;
-            mYAccel = eventAccelY;
-            mZAccel = eventAccelZ;
-        }
-        mLastAcceleration = values.clone();
+        System.arraycopy(values, 0, mLastAcceleration, 0, mLastAcceleration.length);
+        mHasAcceleration = true;
     }
 
     /**
      * Display a special image if the device is in a given orientation.
      */
-    private void onOrientationChanged() {
-        long now = System.currentTimeMillis();
-        if (now - mLastAnalysisTimestamp < 500) return;
-        float[] inR = new float[16];
-        float[] I = new float[16];
-
-        mLastAnalysisTimestamp = now;
-
-        // We need to have recorded acceleration and magnetic field at least once.
-        if (mLastAcceleration == null
-                || mLastMagneticField == null
-                || !SensorManager.getRotationMatrix(inR, I,
-                mLastAcceleration, mLastMagneticField))
-            return;
-
-        float[] outR = remapCoordinateSystem(inR);
-        float[] orientationValues = new float[3];
-        orientationValues = SensorManager.getOrientation(outR,
-                orientationValues);
-        float[] orientationValuesDeg = new float[3];
-        for (int i = 0; i < orientationValues.length; i++) {
-            orientationValuesDeg[i] = (float) (orientationValues[i] * 180.0f / Math.PI);
-        }
-
-        final float yaw = orientationValuesDeg[0];
-        final float pitch = orientationValuesDeg[1];
-        final float roll = orientationValuesDeg[2];
-        for (final OrientationImage orientationImage : mOrientationImages) {
-            if (yaw >= orientationImage.minYaw
-                    && yaw <= orientationImage.maxYaw
-                    && pitch >= orientationImage.minPitch
-                    && pitch <= orientationImage.maxPitch
-                    && roll >= orientationImage.minRoll
-                    && roll <= orientationImage.maxRoll) {
-                final Image image = mNounours.getCurrentTheme().getImages().get(
-                        orientationImage.imageId);
-                mNounours.stopAnimation();
-                mNounours.setImage(image);
-                NounoursRecorder nounoursRecorder = mNounours.getNounoursRecorder();
-                if (nounoursRecorder.isRecording()) nounoursRecorder.addImage(image);
-                // Note that we are currently displaying a "tilt" image.
-                mIsTiltImage = true;
+    private void onOrientationChanged(long timestamp) {
+        if (timestamp - mLastAnalysisTimestamp < ORIENTATION_ANALYSIS_INTERVAL_NS) return;
+
+        mLastAnalysisTimestamp = timestamp;
+
+        if (mRotationVectorSensor != null) {
+            // We need to have received a rotation vector at least once.
+            if (mLastRotationVector == null) return;
+            SensorCompat.getRotationMatrixFromVector(mRotationMatrix, mLastRotationVector);
+        } else {
+            // We need to have recorded acceleration at least once.
+            if (!mHasAcceleration
+                    || !SensorManager.getRotationMatrix(mRotationMatrix, null,
+                    mLastAcceleration, mLastMagneticField))
                 return;
-            }
-        }
-        // Couldn't find any tilt image for this orientation, reset to the
-        // default image if currently displaying a
-        // tilt image
-        if (mIsTiltImage) {
-            mNounours.reset();
-            mIsTiltImage = false;
         }
+
+        remapCoordinateSystem(mRotationMatrix, mRemappedRotationMatrix);
+        SensorManager.getOrientation(mRemappedRotationMatrix, mOrientationValues);
+
+        final float yaw = (float) Math.toDegrees(mOrientationValues[0]);
+        final float pitch = (float) Math.toDegrees(mOrientationValues[1]);
+        final float roll = (float) Math.toDegrees(mOrientationValues[2]);
+        OrientationImageIndex orientationImageIndex = mOrientationImageIndex;
+        final OrientationImage orientationImage = orientationImageIndex == null ? null : orientationImageIndex.find(yaw, pitch, roll);
+        // Nothing to do if there's no tilt image for this orientation, and we're not displaying one.
+        if (orientationImage == null && !mIsTiltImagePending) return;
+        mTiltOrientationImage = orientationImage;
+        mIsTiltImagePending = orientationImage != null;
+        mMainHandler.removeCallbacks(mTiltRunnable);
+        mMainHandler.post(mTiltRunnable);
     }
 
     private void onMagneticFieldChanged(SensorEvent event) {
-        mLastMagneticField = event.values.clone();
+        System.arraycopy(event.values, 0, mLastMagneticField, 0, mLastMagneticField.length);
+    }
+
+    private void onRotationVectorChanged(SensorEvent event) {
+        // Some devices crash in getRotationMatrixFromVector if given more than four values.
+        float[] rotationVector = event.values.length >= 4 ? mRotationVector4 : mRotationVector3;
+        System.arraycopy(event.values, 0, rotationVector, 0, rotationVector.length);
+        mLastRotationVector = rotationVector;
     }
 
-    private float[] remapCoordinateSystem(float[] values) {
+    private void remapCoordinateSystem(float[] values, float[] result) {
         int x = SensorManager.AXIS_X;
         int y = SensorManager.AXIS_Y;
 
-        int rotation = DisplayCompat.getRotation(mContext);
-        switch (rotation) {
+        switch (mDisplayRotation) {
             case Surface.ROTATION_90:
                 //noinspection SuspiciousNameCombination
                 x = SensorManager.AXIS_Y;
@@ -256,9 +352,7 @@ public class SensorListener implements SensorEventListener {
                 break;
         }
 
-        float[] result = new float[values.length];
         SensorManager.remapCoordinateSystem(values, x, y, result);
-        return result;
     }
 
     @Override
@@ -266,5 +360,54 @@ public class SensorListener implements SensorEventListener {
         // Do nothing
     }
 
+    private final Runnable mShakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsRegistered) return;
+            int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_SHAKE);
+            try {
+                mNounours.onShake();
+            } finally {
+                mNounours.setAnimationPriority(previousPriority);
+            }
+        }
+    };
+
+    /**
+     * Display the tilt image found by the last orientation analysis.
+     */
+    private final Runnable mTiltRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsRegistered) return;
+            OrientationImage orientationImage = mTiltOrientationImage;
+            if (orientationImage != null) {
+                final Image image = mNounours.getCurrentTheme().getImages().get(
+                        orientationImage.imageId);
+                mNounours.stopAnimation();
+                mNounours.setImage(image);
+                NounoursRecorder nounoursRecorder = mNounours.getNounoursRecorder();
+                if (nounoursRecorder.isRecording()) nounoursRecorder.addImage(image);
+                // Note that we are currently displaying a "tilt" image.
+                mIsTiltImage = true;
+                return;
+            }
+            // Couldn't find any tilt image for this orientation, reset to the
+            // default image if currently displaying a
+            // tilt image
+            if (mIsTiltImage) {
+                mNounours.reset();
+                mIsTiltImage = false;
+            }
+        }
+    };
+
+    private final DisplayCompat.RotationListener mRotationListener = new DisplayCompat.RotationListener() {
+        @Override
+        public void onRotationChanged(int rotation) {
+            mDisplayRotation = rotation;
+        }
+    };
+
 
 }
@@ -0,0 +1,114 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.handheld.nounours.orientation;
+
+/**
+ * Detects shakes from accelerometer samples.
+ *
+ * Gravity is removed with a high-pass filter.  A peak is counted each time the magnitude of the
+ * remaining (linear) acceleration rises above the threshold.  The next peak can only be counted
+ * once the magnitude has fallen back below half of the threshold.  A shake is reported when
+ * {@link #MIN_PEAK_COUNT} peaks happen within {@link #PEAK_WINDOW_NS}, and then no other shake
+ * is reported during {@link #COOLDOWN_NS}.
+ *
+ * Pure Java and allocation-free.  Not thread-safe: feed it from one thread.
+ */
+final class ShakeDetector {
+
+    static final int MIN_PEAK_COUNT = 3;
+    static final long PEAK_WINDOW_NS = 1000 * 1000000L;
+    static final long COOLDOWN_NS = 1000 * 1000000L;
+    // Time constant of the low-pass filter isolating gravity.  Depends on time, not on the
+    // number of samples, so the filter behaves the same at any sensor rate.
+    private static final float GRAVITY_TIME_CONSTANT_NS = 200 * 1000000f;
+
+    private final float[] mGravity = new float[3];
+    private boolean mHasGravity = false;
+    private long mLastTimestamp;
+    private boolean mIsAboveThreshold = false;
+    // Timestamps of the last peaks, in a ring buffer.
+    private final long[] mPeakTimestamps = new long[MIN_PEAK_COUNT];
+    private int mPeakCount = 0;
+    private int mNextPeakIndex = 0;
+    private boolean mHasShaken = false;
+    private long mLastShakeTimestamp;
+
+    /**
+     * @param timestamp the time of the sample, in nanoseconds, as in SensorEvent.timestamp.
+     * @param threshold the minimum linear acceleration of a peak, in m/s^2.
+     * @return true if this sample completes a shake.
+     */
+    boolean onAcceleration(float x, float y, float z, long timestamp, float threshold) {
+        if (!mHasGravity) {
+            // For some reason, the first reading when the app starts, will give
+            // some values of 0.0, which shouldn't be possible.
+            if (x == 0.0 || y == 0.0 || z == 0.0) return false;
+            mGravity[0] = x;
+            mGravity[1] = y;
+            mGravity[2] = z;
+            mHasGravity = true;
+            mLastTimestamp = timestamp;
+            return false;
+        }
+
+        long elapsed = timestamp - mLastTimestamp;
+        mLastTimestamp = timestamp;
+        if (elapsed < 0) elapsed = 0;
+        float alpha = GRAVITY_TIME_CONSTANT_NS / (GRAVITY_TIME_CONSTANT_NS + elapsed);
+        mGravity[0] = alpha * mGravity[0] + (1 - alpha) * x;
+        mGravity[1] = alpha * mGravity[1] + (1 - alpha) * y;
+        mGravity[2] = alpha * mGravity[2] + (1 - alpha) * z;
+        float linearX = x - mGravity[0];
+        float linearY = y - mGravity[1];
+        float linearZ = z - mGravity[2];
+        float magnitudeSquared = linearX * linearX + linearY * linearY + linearZ * linearZ;
+
+        if (mIsAboveThreshold) {
+            // Hysteresis: wait until the acceleration is clearly down before counting another peak.
+            if (magnitudeSquared < threshold * threshold / 4) mIsAboveThreshold = false;
+            return false;
+        }
+        if (magnitudeSquared <= threshold * threshold) return false;
+
+        mIsAboveThreshold = true;
+        if (mHasShaken && timestamp - mLastShakeTimestamp < COOLDOWN_NS) return false;
+
+        mPeakTimestamps[mNextPeakIndex] = timestamp;
+        mNextPeakIndex = (mNextPeakIndex + 1) % MIN_PEAK_COUNT;
+        if (mPeakCount < MIN_PEAK_COUNT) mPeakCount++;
+        // The oldest of the last MIN_PEAK_COUNT peaks is the one we'll overwrite next.
+        if (mPeakCount == MIN_PEAK_COUNT && timestamp - mPeakTimestamps[mNextPeakIndex] <= PEAK_WINDOW_NS) {
+            mHasShaken = true;
+            mLastShakeTimestamp = timestamp;
+            mPeakCount = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the previous samples and peaks, for example after the sensor was paused.
+     * The cooldown after the last shake still applies.
+     */
+    void reset() {
+        mHasGravity = false;
+        mIsAboveThreshold = false;
+        mPeakCount = 0;
+    }
+}
@@ -20,6 +20,7 @@
 package ca.rmen.nounours.android.handheld.settings;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import ca.rmen.nounours.R;
@@ -39,10 +40,15 @@ public final class SharedPreferenceSettings implements NounoursSettings {
     // We just rename the preference here and don't care about migrating this setting.
     private static final String PREF_IDLE_TIMEOUT = "IdleTimeout2";
 
-    private final Context mContext;
+    private final SharedPreferences mPrefs;
     // To have different app_settings for the app vs lwp, we prefix the app_settings:
     private final String mPreferencePrefix;
     private final String mDefaultThemeId;
+    private final int mDefaultBackgroundColor;
+    // These are read every time we draw Nounours, so we don't build the keys every time.
+    private final String mDimKey;
+    private final String mGrayscaleKey;
+    private final String mBackgroundColorKey;
 
     public static NounoursSettings getAppSettings(Context context) {
         return new SharedPreferenceSettings(context, PREFIX_APP, context.getString(R.string.DEFAULT_APP_THEME_ID));
@@ -57,45 +63,49 @@ public final class SharedPreferenceSettings implements NounoursSettings {
     }
 
     private SharedPreferenceSettings(Context context, String preferencePrefix, String defaultThemeId) {
-        mContext = context;
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         mPreferencePrefix = preferencePrefix;
         mDefaultThemeId = defaultThemeId;
+        mDefaultBackgroundColor = ResourcesCompat.getColor(context, android.R.color.black);
+        mDimKey = preferencePrefix + PREF_DIM;
+        mGrayscaleKey = preferencePrefix + PREF_GRAYSCALE;
+        mBackgroundColorKey = preferencePrefix + PREF_BACKGROUND_COLOR;
     }
 
     @Override
     public boolean isSoundEnabled() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(mPreferencePrefix + PREF_SOUND_AND_VIBRATE, true);
+        return mPrefs.getBoolean(mPreferencePrefix + PREF_SOUND_AND_VIBRATE, true);
     }
 
     @Override
     @SuppressWarnings("SameParameterValue")
     public void setEnableSound(boolean enabled) {
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putBoolean(mPreferencePrefix + PREF_SOUND_AND_VIBRATE, enabled).commit();
+        mPrefs.edit().putBoolean(mPreferencePrefix + PREF_SOUND_AND_VIBRATE, enabled).commit();
     }
 
     @Override
     public boolean isImageDimmed() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(mPreferencePrefix + PREF_DIM, false);
+        return mPrefs.getBoolean(mDimKey, false);
     }
 
     @Override
     public boolean isGrayscale() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(mPreferencePrefix + PREF_GRAYSCALE, false);
+        return mPrefs.getBoolean(mGrayscaleKey, false);
     }
 
     @Override
     public long getIdleTimeout() {
-        return Long.valueOf(PreferenceManager.getDefaultSharedPreferences(mContext).getString(mPreferencePrefix + PREF_IDLE_TIMEOUT, "30000"));
+        return Long.valueOf(mPrefs.getString(mPreferencePrefix + PREF_IDLE_TIMEOUT, "30000"));
     }
 
     @Override
     public String getThemeId() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getString(mPreferencePrefix + PREF_THEME, mDefaultThemeId);
+        return mPrefs.getString(mPreferencePrefix + PREF_THEME, mDefaultThemeId);
     }
 
     @Override
     public int getBackgroundColor() {
-        return PreferenceManager.getDefaultSharedPreferences(mContext).getInt(mPreferencePrefix + PREF_BACKGROUND_COLOR, ResourcesCompat.getColor(mContext, android.R.color.black));
+        return mPrefs.getInt(mBackgroundColorKey, mDefaultBackgroundColor);
     }
 
 }
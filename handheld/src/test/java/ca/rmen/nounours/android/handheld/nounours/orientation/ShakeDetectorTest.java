@@ -0,0 +1,152 @@
+/*
+ *   Copyright (c) 2017 Carmen Alvarez
+ *
+ *   This file is part of Nounours for Android.
+ *
+ *   Nounours for Android is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Nounours for Android is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nounours for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.android.handheld.nounours.orientation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ShakeDetectorTest {
+
+    private static final float GRAVITY = 9.81f;
+    private static final float THRESHOLD = 5f;
+    // About the rate of SensorManager.SENSOR_DELAY_UI
+    private static final long SAMPLE_INTERVAL_NS = 60 * 1000000L;
+
+    @Test
+    public void testDeviceOnDeskIsNotAShake() {
+        // Gravity on z, with the sensor noise of a cheap accelerometer.
+        float[][] samples = new float[][]{
+                {0.12f, -0.31f, 9.62f},
+                {-0.25f, 0.18f, 9.95f},
+                {0.31f, 0.05f, 9.71f},
+                {-0.08f, -0.22f, 10.02f},
+                {0.19f, 0.29f, 9.58f},
+                {-0.30f, -0.11f, 9.89f},
+                {0.02f, 0.24f, 9.77f},
+                {0.27f, -0.19f, 10.05f},
+                {-0.16f, 0.07f, 9.66f},
+                {0.09f, -0.28f, 9.93f},
+        };
+        Assert.assertEquals(0, countShakes(new ShakeDetector(), repeat(samples, 20)));
+    }
+
+    @Test
+    public void testSingleBumpIsNotAShake() {
+        float[][] samples = new float[][]{
+                {0, 0.1f, GRAVITY},
+                {0, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 8f, GRAVITY + 6f},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+                {0.1f, 0.1f, GRAVITY},
+        };
+        Assert.assertEquals(0, countShakes(new ShakeDetector(), samples));
+    }
+
+    @Test
+    public void testSlowTiltIsNotAShake() {
+        // The device is rotated by 90 degrees in two seconds: gravity moves from z to x.
+        int sampleCount = 34;
+        float[][] samples = new float[sampleCount][];
+        for (int i = 0; i < sampleCount; i++) {
+            double angle = Math.PI / 2 * i / (sampleCount - 1);
+            samples[i] = new float[]{(float) (GRAVITY * Math.sin(angle)), 0.1f, (float) (GRAVITY * Math.cos(angle))};
+        }
+        Assert.assertEquals(0, countShakes(new ShakeDetector(), samples));
+    }
+
+    @Test
+    public void testShakeIsDetectedOnce() {
+        // Shaking along x at about 3Hz, for one second.
+        Assert.assertEquals(1, countShakes(new ShakeDetector(), createShake(17, 12f)));
+    }
+
+    @Test
+    public void testCooldown() {
+        ShakeDetector shakeDetector = new ShakeDetector();
+        // Shaking without stopping for about three seconds: a shake in the first second, none
+        // during the cooldown, and another one once the cooldown is over.
+        long[] shakeTimestamps = getShakeTimestamps(shakeDetector, createShake(50, 12f), 0);
+        Assert.assertEquals(2, shakeTimestamps.length);
+        Assert.assertTrue(shakeTimestamps[0] <= ShakeDetector.PEAK_WINDOW_NS);
+        Assert.assertTrue(shakeTimestamps[1] - shakeTimestamps[0] >= ShakeDetector.COOLDOWN_NS);
+        // Shaking again after the cooldown, once the sensor was paused, is a new shake.
+        long end = 50 * SAMPLE_INTERVAL_NS;
+        shakeDetector.reset();
+        Assert.assertEquals(1, countShakes(shakeDetector, createShake(17, 12f), end + ShakeDetector.COOLDOWN_NS));
+    }
+
+    @Test
+    public void testFirstZeroReadingsAreIgnored() {
+        float[][] shake = createShake(17, 12f);
+        float[][] samples = new float[shake.length + 2][];
+        samples[0] = new float[]{0, 0, 0};
+        samples[1] = new float[]{0, 0, 0};
+        System.arraycopy(shake, 0, samples, 2, shake.length);
+        Assert.assertEquals(1, countShakes(new ShakeDetector(), samples));
+    }
+
+    private static float[][] createShake(int sampleCount, float amplitude) {
+        float[][] samples = new float[sampleCount][];
+        for (int i = 0; i < sampleCount; i++) {
+            double t = i * SAMPLE_INTERVAL_NS / 1e9;
+            samples[i] = new float[]{(float) (amplitude * Math.sin(2 * Math.PI * 3 * t)), 0.2f, GRAVITY};
+        }
+        return samples;
+    }
+
+    private static float[][] repeat(float[][] samples, int count) {
+        float[][] result = new float[samples.length * count][];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(samples, 0, result, i * samples.length, samples.length);
+        }
+        return result;
+    }
+
+    private static int countShakes(ShakeDetector shakeDetector, float[][] samples) {
+        return countShakes(shakeDetector, samples, 0);
+    }
+
+    private static int countShakes(ShakeDetector shakeDetector, float[][] samples, long startTimestamp) {
+        return getShakeTimestamps(shakeDetector, samples, startTimestamp).length;
+    }
+
+    /**
+     * @return the timestamps of the samples which completed a shake.
+     */
+    private static long[] getShakeTimestamps(ShakeDetector shakeDetector, float[][] samples, long startTimestamp) {
+        long[] shakeTimestamps = new long[samples.length];
+        int shakeCount = 0;
+        for (int i = 0; i < samples.length; i++) {
+            long timestamp = startTimestamp + i * SAMPLE_INTERVAL_NS;
+            if (shakeDetector.onAcceleration(samples[i][0], samples[i][1], samples[i][2], timestamp, THRESHOLD)) {
+                shakeTimestamps[shakeCount++] = timestamp;
+            }
+        }
+        return Arrays.copyOf(shakeTimestamps, shakeCount);
+    }
+}
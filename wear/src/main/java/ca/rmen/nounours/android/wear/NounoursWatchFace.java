@@ -41,7 +41,6 @@ import ca.rmen.nounours.android.common.nounours.AndroidNounours;
 import ca.rmen.nounours.android.common.nounours.EmptySoundHandler;
 import ca.rmen.nounours.android.common.nounours.EmptyThemeLoadListener;
 import ca.rmen.nounours.android.common.nounours.EmptyVibrateHandler;
-import ca.rmen.nounours.android.common.nounours.cache.ImageCache;
 import ca.rmen.nounours.android.common.nounours.cache.NounoursResourceCache;
 import ca.rmen.nounours.data.Image;
 
@@ -82,7 +81,7 @@ public abstract class NounoursWatchFace extends CanvasWatchFaceService {
 
             mSettings.setBackgroundColor(ResourcesCompat.getColor(getApplicationContext(), R.color.background_color));
             mRenderer = new NounoursWatchFaceRenderer(context, mSettings);
-            mCache = new NounoursResourceCache(context, mSettings, new ImageCache());
+            mCache = new NounoursResourceCache(context, mSettings);
             PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(mSharedPrefsListener);
             mNounours = new AndroidNounours("WEAR",
                     getApplicationContext(),
@@ -94,6 +93,7 @@ public abstract class NounoursWatchFace extends CanvasWatchFaceService {
                     new EmptySoundHandler(),
                     new EmptyVibrateHandler(),
                     new EmptyThemeLoadListener());
+            mNounours.initAsync();
         }
 
         private void setWatchFaceStyle() {
@@ -125,7 +125,12 @@ public abstract class NounoursWatchFace extends CanvasWatchFaceService {
             super.onTapCommand(tapType, x, y, eventTime);
             if (mNounours.isLoading()) return;
             if (tapType == WatchFaceService.TAP_TYPE_TAP) {
-                mNounours.doRandomAnimation();
+                int previousPriority = mNounours.setAnimationPriority(AndroidNounours.PRIORITY_TAP);
+                try {
+                    mNounours.doRandomAnimation();
+                } finally {
+                    mNounours.setAnimationPriority(previousPriority);
+                }
             }
         }
 
@@ -166,7 +171,7 @@ public abstract class NounoursWatchFace extends CanvasWatchFaceService {
                 Image image = mNounours.getCurrentImage();
                 if (image != null) {
                     Bitmap bitmap = mCache.getDrawableImage(getApplicationContext(), image);
-                    mRenderer.render(mSettings, bitmap, canvas, bounds.width(), bounds.height());
+                    mRenderer.render(mSettings, image.getId(), bitmap, canvas, bounds.width(), bounds.height());
                 }
             }
         }
@@ -82,9 +82,9 @@ class NounoursWatchFaceRenderer extends NounoursRenderer {
     }
 
     @Override
-    public void render(NounoursSettings settings, Bitmap bitmap, Canvas canvas, int viewWidth, int viewHeight) {
+    public void render(NounoursSettings settings, String imageId, Bitmap bitmap, Rect src, Canvas canvas, int viewWidth, int viewHeight) {
         if (mIsAmbient) renderAmbientNounours((WearSettings) settings, canvas, viewWidth, viewHeight);
-        else super.render(settings, bitmap, canvas, viewWidth, viewHeight);
+        else super.render(settings, imageId, bitmap, src, canvas, viewWidth, viewHeight);
     }
 
     private void renderAmbientNounours(WearSettings settings, Canvas c, int viewWidth, int viewHeight) {